@@ -0,0 +1,41 @@
+package datadog.trace.finagle;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * Runs the benchmarks with the standard JMH command line, always adding the GC profiler so
+ * allocation rates are reported, and writing JSON results that can be compared to a baseline.
+ */
+public class BenchmarkRunner {
+  public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    OptionsBuilder options = new OptionsBuilder();
+    options.parent(commandLine);
+    if (!hasGcProfiler(commandLine)) {
+      options.addProfiler(GCProfiler.class);
+    }
+    if (!commandLine.getResult().hasValue()) {
+      options.result("jmh-result.json");
+      options.resultFormat(ResultFormatType.JSON);
+    }
+
+    new Runner(options.build()).run();
+  }
+
+  private static boolean hasGcProfiler(CommandLineOptions commandLine) {
+    for (ProfilerConfig profiler : commandLine.getProfilers()) {
+      if ("gc".equals(profiler.getKlass())
+          || GCProfiler.class.getName().equals(profiler.getKlass())) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
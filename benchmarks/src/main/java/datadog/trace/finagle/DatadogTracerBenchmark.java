@@ -0,0 +1,80 @@
+package datadog.trace.finagle;
+
+import com.twitter.finagle.stats.NullStatsReceiver;
+import com.twitter.finagle.tracing.Record;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Records whole traces into a single tracer from several threads. Nothing listens on the agent
+ * port, so completed traces end up dropped by the writer and only the record path is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class DatadogTracerBenchmark {
+  // Larger than the flushed span cache, so ids are forgotten before a trace is replayed
+  private static final int TRACES_PER_THREAD = 2048;
+
+  @Param({"0", "4"})
+  int clientSpans;
+
+  DatadogTracer tracer;
+
+  @State(Scope.Thread)
+  public static class ThreadTraces {
+    List<Record>[] traces;
+    int next;
+
+    @Setup(Level.Iteration)
+    @SuppressWarnings("unchecked")
+    public void setup(DatadogTracerBenchmark benchmark) {
+      traces = new List[TRACES_PER_THREAD];
+      for (int i = 0; i < traces.length; i++) {
+        traces[i] = TraceFixtures.serverTrace(benchmark.clientSpans);
+      }
+    }
+
+    List<Record> next() {
+      List<Record> trace = traces[next];
+      next = (next + 1) % traces.length;
+      return trace;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    tracer = new DatadogTracer("benchmark", "localhost", 1, NullStatsReceiver.get());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    // Nothing listens on the agent port, don't wait for the queue to drain
+    tracer.close(0, TimeUnit.MILLISECONDS);
+  }
+
+  @Benchmark
+  public void recordTrace(ThreadTraces traces) {
+    for (Record record : traces.next()) {
+      tracer.record(record);
+    }
+  }
+}
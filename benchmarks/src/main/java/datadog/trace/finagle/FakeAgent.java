@@ -0,0 +1,158 @@
+package datadog.trace.finagle;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+/**
+ * Stands in for the Datadog agent on {@code /v0.4/traces}. Payloads are decoded like the agent
+ * would, so a malformed batch fails the run, and the delay between a trace ending and its arrival
+ * is recorded as the writer lag.
+ */
+final class FakeAgent implements AutoCloseable {
+  private static final byte[] RESPONSE = "{}".getBytes();
+
+  private final ObjectMapper objectMapper = new ObjectMapper(new MessagePackFactory());
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final long responseDelayMillis;
+  private final boolean retainSpans;
+
+  // Guarded by this
+  private long payloads;
+  private long traces;
+  private long spans;
+  private long decodingErrors;
+  private long[] lagMillis = new long[1024];
+  private final Map<String, JsonNode> spansById = new HashMap<>();
+
+  /** @param responseDelayMillis Time taken to answer each upload, to simulate a slow agent */
+  FakeAgent(long responseDelayMillis) throws IOException {
+    this(responseDelayMillis, false);
+  }
+
+  /** @param retainSpans Keeps the decoded spans, see {@link #getSpans()} */
+  FakeAgent(long responseDelayMillis, boolean retainSpans) throws IOException {
+    this.responseDelayMillis = responseDelayMillis;
+    this.retainSpans = retainSpans;
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/v0.4/traces", this::handle);
+    server.start();
+  }
+
+  int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  synchronized long getTraces() {
+    return traces;
+  }
+
+  /** @return The spans received, by {@link #spanKey}, when they are retained */
+  synchronized Map<String, JsonNode> getSpans() {
+    return new HashMap<>(spansById);
+  }
+
+  static String spanKey(JsonNode span) {
+    return span.get("trace_id").asText() + "/" + span.get("span_id").asText();
+  }
+
+  synchronized String summary() {
+    long[] lags = Arrays.copyOf(lagMillis, (int) traces);
+    Arrays.sort(lags);
+    return String.format(
+        "%d payloads, %d traces, %d spans, %d decoding errors%n"
+            + "writer lag ms: p50 %d, p99 %d, max %d",
+        payloads,
+        traces,
+        spans,
+        decodingErrors,
+        percentile(lags, 0.5),
+        percentile(lags, 0.99),
+        lags.length == 0 ? 0 : lags[lags.length - 1]);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    long receivedNanos = System.currentTimeMillis() * 1000000L;
+    byte[] payload = readAll(exchange.getRequestBody());
+
+    try {
+      JsonNode batch = objectMapper.readTree(payload);
+      String traceCount = exchange.getRequestHeaders().getFirst("X-Datadog-Trace-Count");
+      if (traceCount == null || Integer.parseInt(traceCount) != batch.size()) {
+        throw new IOException("Trace count header doesn't match the payload");
+      }
+      record(batch, receivedNanos);
+    } catch (IOException | RuntimeException e) {
+      synchronized (this) {
+        decodingErrors++;
+      }
+    }
+
+    if (responseDelayMillis > 0) {
+      try {
+        TimeUnit.MILLISECONDS.sleep(responseDelayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    exchange.sendResponseHeaders(200, RESPONSE.length);
+    exchange.getResponseBody().write(RESPONSE);
+    exchange.close();
+  }
+
+  private synchronized void record(JsonNode batch, long receivedNanos) {
+    payloads++;
+    for (JsonNode trace : batch) {
+      long end = 0;
+      for (JsonNode span : trace) {
+        end = Math.max(end, span.get("start").asLong() + span.get("duration").asLong());
+        spans++;
+        if (retainSpans) {
+          spansById.put(spanKey(span), span);
+        }
+      }
+
+      if (traces == lagMillis.length) {
+        lagMillis = Arrays.copyOf(lagMillis, lagMillis.length * 2);
+      }
+      lagMillis[(int) traces++] = TimeUnit.NANOSECONDS.toMillis(Math.max(receivedNanos - end, 0));
+    }
+  }
+
+  static long percentile(long[] sorted, double quantile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[(int) Math.min(sorted.length - 1, Math.floor(sorted.length * quantile))];
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,265 @@
+package datadog.trace.finagle;
+
+import com.twitter.finagle.Http;
+import com.twitter.finagle.ListeningServer;
+import com.twitter.finagle.Service;
+import com.twitter.finagle.http.Method;
+import com.twitter.finagle.http.Request;
+import com.twitter.finagle.http.Response;
+import com.twitter.finagle.stats.InMemoryStatsReceiver;
+import com.twitter.finagle.stats.NullStatsReceiver;
+import com.twitter.finagle.tracing.NullTracer$;
+import com.twitter.finagle.tracing.Tracer;
+import com.twitter.util.Await;
+import com.twitter.util.Future;
+import com.twitter.util.Futures;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import scala.Option;
+import scala.collection.JavaConverters;
+import scala.runtime.BoxedUnit;
+
+/**
+ * Measures the tracer inside a real Finagle HTTP chain: a load generator calls a frontend server,
+ * which fans out to a backend server through an HTTP client. The chain is run once untraced and
+ * once with a {@link DatadogTracer} reporting to a {@link FakeAgent}, the frontend and backend
+ * servers being instrumented by {@link FilterInstaller} as in production.
+ *
+ * <p>Requests are sent at a fixed rate whether or not earlier ones completed, and their latency is
+ * measured from the time they were due, so a stalled server shows up in the percentiles.
+ */
+public class LoadTest {
+  private final int qps;
+  private final int fanOut;
+  private final int warmupSeconds;
+  private final int durationSeconds;
+  private final long agentDelayMillis;
+
+  private LoadTest(String[] args) {
+    qps = intOption(args, "--qps", 1000);
+    fanOut = intOption(args, "--fan-out", 3);
+    warmupSeconds = intOption(args, "--warmup", 10);
+    durationSeconds = intOption(args, "--duration", 30);
+    agentDelayMillis = intOption(args, "--agent-delay-ms", 0);
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadTest loadTest = new LoadTest(args);
+    System.out.printf(
+        "%d requests per second, fan-out %d, %d s warmup, %d s measured%n",
+        loadTest.qps, loadTest.fanOut, loadTest.warmupSeconds, loadTest.durationSeconds);
+
+    Latencies untraced = loadTest.runUntraced();
+    Latencies traced = loadTest.runTraced();
+
+    System.out.println();
+    System.out.println("latency us      p50      p99    p99.9      max   errors");
+    System.out.println("untraced " + untraced);
+    System.out.println("traced   " + traced);
+    System.out.printf(
+        "overhead        %+.1f%%   %+.1f%%%n",
+        overhead(untraced.percentile(0.5), traced.percentile(0.5)),
+        overhead(untraced.percentile(0.99), traced.percentile(0.99)));
+    System.exit(0);
+  }
+
+  private Latencies runUntraced() throws Exception {
+    return run(NullTracer$.MODULE$);
+  }
+
+  private Latencies runTraced() throws Exception {
+    InMemoryStatsReceiver stats = new InMemoryStatsReceiver();
+    try (FakeAgent agent = new FakeAgent(agentDelayMillis)) {
+      DatadogTracer tracer = new DatadogTracer("load-test", "127.0.0.1", agent.getPort(), stats);
+      Latencies latencies = run(tracer);
+      // Includes the warmup requests, the traces of both phases are counted
+      int requests = qps * (warmupSeconds + durationSeconds);
+
+      long start = System.nanoTime();
+      tracer.close();
+      long drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+      System.out.println();
+      System.out.printf(
+          "%d requests traced: %d traces completed, %d expired, %d unsampled, "
+              + "%d dropped by the writer, %d received by the agent%n",
+          requests,
+          counter(stats, "traces", "completed"),
+          counter(stats, "traces", "expired"),
+          counter(stats, "governor", "unsampled_traces"),
+          counter(stats, "queue", "dropped"),
+          agent.getTraces());
+      System.out.println(agent.summary());
+      System.out.printf("close drained the writer in %d ms%n", drainMillis);
+      return latencies;
+    }
+  }
+
+  /** Runs the warmup and the measured phase through a new chain traced by {@code tracer} */
+  private Latencies run(Tracer tracer) throws Exception {
+    InetSocketAddress anyPort = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    ListeningServer backend =
+        Http.server()
+            .withLabel("backend")
+            .withTracer(tracer)
+            .withStatsReceiver(NullStatsReceiver.get())
+            .serve(anyPort, Service.mk(request -> Future.value(Response.apply())));
+    Service<Request, Response> backendClient =
+        Http.client()
+            .withLabel("backend")
+            .withTracer(tracer)
+            .withStatsReceiver(NullStatsReceiver.get())
+            .newService(address(backend));
+
+    ListeningServer frontend =
+        Http.server()
+            .withLabel("frontend")
+            .withTracer(tracer)
+            .withStatsReceiver(NullStatsReceiver.get())
+            .serve(anyPort, Service.mk(request -> fanOut(backendClient)));
+    // The load generator is not part of the measured service, its requests start new traces
+    Service<Request, Response> client =
+        Http.client()
+            .withLabel("load")
+            .withTracer(NullTracer$.MODULE$)
+            .withStatsReceiver(NullStatsReceiver.get())
+            .newService(address(frontend));
+
+    try {
+      sendRequests(client, warmupSeconds);
+      return sendRequests(client, durationSeconds);
+    } finally {
+      Await.result(client.close());
+      Await.result(frontend.close());
+      Await.result(backendClient.close());
+      Await.result(backend.close());
+    }
+  }
+
+  private Future<Response> fanOut(Service<Request, Response> backendClient) {
+    List<Future<Response>> calls = new ArrayList<>(fanOut);
+    for (int i = 0; i < fanOut; i++) {
+      calls.add(backendClient.apply(Request.apply(Method.Get(), "/items/" + i)));
+    }
+    return Futures.collect(calls).map(responses -> Response.apply());
+  }
+
+  private Latencies sendRequests(Service<Request, Response> client, int seconds)
+      throws InterruptedException {
+    int requests = qps * seconds;
+    Latencies latencies = new Latencies(requests);
+    long interval = TimeUnit.SECONDS.toNanos(1) / qps;
+    long due = System.nanoTime();
+
+    for (int i = 0; i < requests; i++) {
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      long scheduled = due;
+      client
+          .apply(Request.apply(Method.Get(), "/"))
+          .respond(
+              response -> {
+                latencies.add(System.nanoTime() - scheduled, response.isReturn());
+                return BoxedUnit.UNIT;
+              });
+      due += interval;
+    }
+
+    latencies.await(TimeUnit.SECONDS.toNanos(10));
+    return latencies;
+  }
+
+  private static String address(ListeningServer server) {
+    InetSocketAddress address = (InetSocketAddress) server.boundAddress();
+    return address.getHostString() + ":" + address.getPort();
+  }
+
+  /** @return The value of a tracer counter, 0 if it was never incremented */
+  static long counter(InMemoryStatsReceiver stats, String... names) {
+    List<String> name = new ArrayList<>();
+    name.add("dd_tracer");
+    name.addAll(Arrays.asList(names));
+    Option<Object> value = stats.counters().get(JavaConverters.asScalaBuffer(name).toList());
+    return value.isDefined() ? (Long) value.get() : 0;
+  }
+
+  private static double overhead(long base, long value) {
+    return base == 0 ? 0 : (value - base) * 100.0 / base;
+  }
+
+  private static int intOption(String[] args, String name, int defaultValue) {
+    for (int i = 0; i < args.length - 1; i++) {
+      if (name.equals(args[i])) {
+        return Integer.parseInt(args[i + 1]);
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Latencies of a fixed number of requests, in nanoseconds. Responses are added from Finagle's
+   * threads while the load thread waits, so the state is guarded by the instance lock.
+   */
+  private static final class Latencies {
+    private final long[] nanos;
+    private int completed;
+    private int errors;
+    // Set once the timeout expired, responses after that are reported as errors
+    private boolean done;
+
+    Latencies(int requests) {
+      nanos = new long[requests];
+    }
+
+    synchronized void add(long latency, boolean success) {
+      if (done) {
+        return;
+      }
+      if (!success) {
+        errors++;
+      }
+      nanos[completed++] = latency;
+    }
+
+    private synchronized int completed() {
+      return completed;
+    }
+
+    /** Waits for the requests in flight, giving up on the ones that take longer than timeout */
+    void await(long timeoutNanos) throws InterruptedException {
+      long deadline = System.nanoTime() + timeoutNanos;
+      while (completed() < nanos.length && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+
+      synchronized (this) {
+        done = true;
+        Arrays.sort(nanos, 0, completed);
+      }
+    }
+
+    synchronized long percentile(double quantile) {
+      long[] sorted = Arrays.copyOf(nanos, completed);
+      return TimeUnit.NANOSECONDS.toMicros(FakeAgent.percentile(sorted, quantile));
+    }
+
+    @Override
+    public synchronized String toString() {
+      int missing = nanos.length - completed;
+      return String.format(
+          "%8d %8d %8d %8d %8d",
+          percentile(0.5),
+          percentile(0.99),
+          percentile(0.999),
+          percentile(1),
+          errors + missing);
+    }
+  }
+}
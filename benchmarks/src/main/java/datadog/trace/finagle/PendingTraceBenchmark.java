@@ -0,0 +1,44 @@
+package datadog.trace.finagle;
+
+import com.twitter.finagle.tracing.Record;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Assembles a trace from its records, for a lone server span and for fan-out traces */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class PendingTraceBenchmark {
+  @Param({"0", "10", "100"})
+  int clientSpans;
+
+  List<Record> records;
+
+  @Setup
+  public void setup() {
+    records = TraceFixtures.serverTrace(clientSpans);
+  }
+
+  @Benchmark
+  public PendingTrace addRecords() {
+    PendingTrace trace = new PendingTrace("benchmark");
+    for (Record record : records) {
+      trace.addRecord(record);
+    }
+    return trace;
+  }
+}
@@ -0,0 +1,222 @@
+package datadog.trace.finagle;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twitter.finagle.stats.InMemoryStatsReceiver;
+import com.twitter.finagle.tracing.Record;
+import com.twitter.finagle.tracing.SpanId;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+/**
+ * Feeds the records of a capture written with {@code dd.trace.finagle.capture.path} into a {@link
+ * DatadogTracer} reporting to a {@link FakeAgent}. The records of a trace are all replayed by the
+ * same thread, in capture order, at the captured pace divided by {@code --speed}, or as fast as
+ * possible with {@code --speed 0}.
+ *
+ * <p>It reports the replay throughput, the memory allocated by the replay threads and the writer,
+ * and compares the spans received by the agent with the spans the same records produce when they
+ * are added to traces directly, one at a time.
+ */
+public class RecordReplay {
+  private final File capture;
+  private final double speed;
+  private final int threads;
+
+  private RecordReplay(String[] args) {
+    if (args.length == 0 || args[0].startsWith("--")) {
+      throw new IllegalArgumentException(
+          "Usage: RecordReplay <capture file> [--speed 1] [--threads 4]");
+    }
+    capture = new File(args[0]);
+    speed = Double.parseDouble(option(args, "--speed", "1"));
+    threads = Integer.parseInt(option(args, "--threads", "4"));
+  }
+
+  public static void main(String[] args) throws Exception {
+    new RecordReplay(args).run();
+    System.exit(0);
+  }
+
+  private void run() throws Exception {
+    List<Record> records = read(capture);
+    if (records.isEmpty()) {
+      System.out.println("No records in " + capture);
+      return;
+    }
+    long firstNanos = records.get(0).timestamp().inNanoseconds();
+    long capturedNanos = records.get(records.size() - 1).timestamp().inNanoseconds() - firstNanos;
+    System.out.printf(
+        "%d records over %.1f s, replayed on %d threads at %s%n",
+        records.size(),
+        capturedNanos / 1e9,
+        threads,
+        speed > 0 ? speed + "x" : "full speed");
+
+    InMemoryStatsReceiver stats = new InMemoryStatsReceiver();
+    try (FakeAgent agent = new FakeAgent(0, true)) {
+      DatadogTracer tracer = new DatadogTracer("replay", "127.0.0.1", agent.getPort(), stats);
+
+      List<List<Record>> partitions = partition(records);
+      AtomicLong allocated = new AtomicLong();
+      List<Thread> replayThreads = new ArrayList<>();
+      long start = System.nanoTime();
+      for (List<Record> partition : partitions) {
+        Thread thread =
+            new Thread(
+                () -> allocated.addAndGet(replay(tracer, partition, start, firstNanos)),
+                "replay-" + replayThreads.size());
+        thread.start();
+        replayThreads.add(thread);
+      }
+      for (Thread thread : replayThreads) {
+        thread.join();
+      }
+      long elapsed = System.nanoTime() - start;
+      long writerAllocated = allocatedBytes("dd-trace-writer");
+      tracer.close();
+
+      System.out.printf(
+          "%.0f records/s, %d bytes allocated per record by the replay threads, "
+              + "%d bytes by the writer%n",
+          records.size() * 1e9 / elapsed,
+          allocated.get() / records.size(),
+          writerAllocated);
+      System.out.printf(
+          "%d traces received by the agent, %d unsampled, %d dropped by the writer%n",
+          agent.getTraces(),
+          LoadTest.counter(stats, "governor", "unsampled_traces"),
+          LoadTest.counter(stats, "queue", "dropped"));
+      compare(reference(tracer, records), agent.getSpans());
+    }
+  }
+
+  private static List<Record> read(File capture) throws IOException {
+    List<Record> records = new ArrayList<>();
+    try (CaptureReader reader = new CaptureReader(capture)) {
+      Record record;
+      while ((record = reader.next()) != null) {
+        records.add(record);
+      }
+    }
+    return records;
+  }
+
+  /** Splits the records by trace, keeping the capture order within a trace */
+  private List<List<Record>> partition(List<Record> records) {
+    List<List<Record>> partitions = new ArrayList<>(threads);
+    for (int i = 0; i < threads; i++) {
+      partitions.add(new ArrayList<>());
+    }
+    for (Record record : records) {
+      int hash = record.traceId().traceId().hashCode();
+      partitions.get(Math.floorMod(hash, threads)).add(record);
+    }
+    return partitions;
+  }
+
+  /** @return Bytes allocated by the calling thread while replaying */
+  private long replay(DatadogTracer tracer, List<Record> records, long start, long firstNanos) {
+    long allocatedBefore = allocatedBytes(Thread.currentThread());
+    for (Record record : records) {
+      if (speed > 0) {
+        long due = start + (long) ((record.timestamp().inNanoseconds() - firstNanos) / speed);
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+        }
+      }
+      tracer.record(record);
+    }
+    return allocatedBytes(Thread.currentThread()) - allocatedBefore;
+  }
+
+  /**
+   * The spans of the records that pass the record filter, added one at a time to traces created
+   * like the tracer creates them
+   */
+  private static Map<String, JsonNode> reference(DatadogTracer tracer, List<Record> records)
+      throws IOException {
+    RecordFilter recordFilter = RecordFilter.fromSettings();
+    Map<SpanId, PendingTrace> traces = new LinkedHashMap<>();
+    for (Record record : records) {
+      if (!recordFilter.accept(record.annotation())) {
+        continue;
+      }
+      traces
+          .computeIfAbsent(record.traceId().traceId(), tracer::newTrace)
+          .addRecord(record);
+    }
+
+    // Encoded and decoded the way the agent sees them
+    ObjectMapper objectMapper = new ObjectMapper(new MessagePackFactory());
+    Map<String, JsonNode> spans = new LinkedHashMap<>();
+    for (PendingTrace trace : traces.values()) {
+      JsonNode encoded = objectMapper.readTree(objectMapper.writeValueAsBytes(trace.getSpans()));
+      for (JsonNode span : encoded) {
+        spans.put(FakeAgent.spanKey(span), span);
+      }
+    }
+    return spans;
+  }
+
+  private static void compare(Map<String, JsonNode> expected, Map<String, JsonNode> actual) {
+    int equal = 0;
+    int different = 0;
+    int missing = 0;
+    String example = null;
+    for (Map.Entry<String, JsonNode> span : expected.entrySet()) {
+      JsonNode received = actual.remove(span.getKey());
+      if (received == null) {
+        missing++;
+      } else if (received.equals(span.getValue())) {
+        equal++;
+      } else {
+        different++;
+        if (example == null) {
+          example =
+              "expected " + span.getValue() + System.lineSeparator() + "  received " + received;
+        }
+      }
+    }
+
+    System.out.printf(
+        "output: %d spans equal, %d different, %d missing, %d unexpected%n",
+        equal, different, missing, actual.size());
+    if (example != null) {
+      System.out.println("  " + example);
+    }
+  }
+
+  private static long allocatedBytes(Thread thread) {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return threads.getThreadAllocatedBytes(thread.getId());
+  }
+
+  private static long allocatedBytes(String threadName) {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (threadName.equals(thread.getName())) {
+        return allocatedBytes(thread);
+      }
+    }
+    return 0;
+  }
+
+  private static String option(String[] args, String name, String defaultValue) {
+    for (int i = 1; i < args.length - 1; i++) {
+      if (name.equals(args[i])) {
+        return args[i + 1];
+      }
+    }
+    return defaultValue;
+  }
+}
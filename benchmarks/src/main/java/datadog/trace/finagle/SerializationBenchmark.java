@@ -0,0 +1,52 @@
+package datadog.trace.finagle;
+
+import com.twitter.finagle.stats.NullStatsReceiver;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Msgpack encoding of a batch, as done by the writer before each upload */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class SerializationBenchmark {
+  @Param({"50", "500"})
+  int traces;
+
+  @Param({"4"})
+  int clientSpans;
+
+  DDApi ddApi;
+  List<List<Span>> batch;
+
+  @Setup
+  public void setup() {
+    ddApi = new DDApi("localhost", 1, NullStatsReceiver.get());
+    batch = TraceFixtures.batch(traces, clientSpans);
+  }
+
+  @TearDown
+  public void tearDown() {
+    ddApi.close();
+  }
+
+  @Benchmark
+  public byte[] serializeBatch() throws IOException {
+    return ddApi.serialize(batch);
+  }
+}
@@ -0,0 +1,59 @@
+package datadog.trace.finagle;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The per-span getters called while serializing */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class SpanBenchmark {
+  Span httpServer;
+  Span sqlClient;
+
+  @Setup
+  public void setup() {
+    List<Span> spans = TraceFixtures.pendingTrace(2).getSpans();
+    for (Span span : spans) {
+      if (span.getKind() == Span.Kind.SERVER) {
+        httpServer = span;
+      } else if (span.getMeta().containsKey("sql.query")) {
+        sqlClient = span;
+      }
+    }
+  }
+
+  @Benchmark
+  public String httpServerResourceName() {
+    return httpServer.getResourceName();
+  }
+
+  @Benchmark
+  public String sqlClientResourceName() {
+    return sqlClient.getResourceName();
+  }
+
+  @Benchmark
+  public Map<String, String> httpServerMeta() {
+    return httpServer.getMeta();
+  }
+
+  @Benchmark
+  public Map<String, String> sqlClientMeta() {
+    return sqlClient.getMeta();
+  }
+}
@@ -0,0 +1,107 @@
+package datadog.trace.finagle;
+
+import com.twitter.finagle.tracing.Annotation;
+import com.twitter.finagle.tracing.Flags;
+import com.twitter.finagle.tracing.Record;
+import com.twitter.finagle.tracing.SpanId;
+import com.twitter.finagle.tracing.TraceId;
+import com.twitter.util.Time;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import scala.Option;
+
+/** Builds the records Finagle emits for typical server traces */
+final class TraceFixtures {
+  private static final InetSocketAddress CLIENT = new InetSocketAddress("10.0.0.12", 51234);
+  private static final InetSocketAddress SERVER = new InetSocketAddress("10.0.0.34", 8080);
+  private static final InetSocketAddress DOWNSTREAM = new InetSocketAddress("10.0.1.56", 9090);
+
+  private TraceFixtures() {}
+
+  /**
+   * Records for an HTTP server span with {@code clientSpans} downstream calls: one HTTP client
+   * call for every two SQL queries.
+   */
+  static List<Record> serverTrace(int clientSpans) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    SpanId traceId = SpanId.apply(random.nextLong(1, Long.MAX_VALUE));
+    TraceId root = traceId(traceId, traceId, traceId);
+
+    long time = System.currentTimeMillis() * 1000000L;
+    List<Record> records = new ArrayList<>(12 + clientSpans * 10);
+    records.add(record(root, time, Annotation.ServerRecv$.MODULE$));
+    records.add(record(root, time, new Annotation.Rpc("GET")));
+    records.add(record(root, time, new Annotation.ServiceName("frontend")));
+    records.add(record(root, time, new Annotation.BinaryAnnotation("http.uri", "/users/12345")));
+    records.add(record(root, time, new Annotation.LocalAddr(SERVER)));
+    records.add(record(root, time, new Annotation.ClientAddr(CLIENT)));
+
+    for (int i = 0; i < clientSpans; i++) {
+      SpanId spanId = SpanId.apply(random.nextLong(1, Long.MAX_VALUE));
+      TraceId child = traceId(traceId, root.spanId(), spanId);
+      time += 1000;
+
+      records.add(record(child, time, Annotation.ClientSend$.MODULE$));
+      if (i % 3 == 0) {
+        records.add(record(child, time, new Annotation.Rpc("POST")));
+        records.add(record(child, time, new Annotation.ServiceName("accounts")));
+        records.add(
+            record(
+                child, time, new Annotation.BinaryAnnotation("http.uri", "/accounts/" + i + "/a")));
+      } else {
+        records.add(record(child, time, new Annotation.Rpc("query")));
+        records.add(
+            record(
+                child,
+                time,
+                new Annotation.BinaryAnnotation(
+                    "sql.query", "SELECT * FROM accounts WHERE id = " + (1000 + i))));
+      }
+      records.add(record(child, time, new Annotation.ServerAddr(DOWNSTREAM)));
+      records.add(record(child, time + 200, Annotation.WireSend$.MODULE$));
+      records.add(record(child, time + 700, Annotation.WireRecv$.MODULE$));
+      records.add(record(child, time + 800, Annotation.ClientRecv$.MODULE$));
+      time += 800;
+    }
+
+    records.add(record(root, time + 100, new Annotation.BinaryAnnotation("http.status", 200)));
+    records.add(record(root, time + 100, new Annotation.BinaryAnnotation("jvm/gc_count", 12L)));
+    records.add(record(root, time + 200, Annotation.ServerSend$.MODULE$));
+    return records;
+  }
+
+  /** A complete trace, as handed to the writer */
+  static PendingTrace pendingTrace(int clientSpans) {
+    PendingTrace trace = new PendingTrace("frontend");
+    for (Record record : serverTrace(clientSpans)) {
+      trace.addRecord(record);
+    }
+    return trace;
+  }
+
+  /** A batch of traces, as serialized by the writer */
+  static List<List<Span>> batch(int traces, int clientSpans) {
+    List<List<Span>> batch = new ArrayList<>(traces);
+    for (int i = 0; i < traces; i++) {
+      batch.add(pendingTrace(clientSpans).getSpans());
+    }
+    return batch;
+  }
+
+  private static TraceId traceId(SpanId traceId, SpanId parentId, SpanId spanId) {
+    return TraceId.apply(
+        Option.apply(traceId),
+        Option.apply(parentId),
+        spanId,
+        Option.<Object>apply(true),
+        Flags.apply(),
+        Option.empty(),
+        false);
+  }
+
+  private static Record record(TraceId traceId, long nanos, Annotation annotation) {
+    return new Record(traceId, Time.fromNanoseconds(nanos), annotation, Option.empty());
+  }
+}
@@ -0,0 +1,248 @@
+package datadog.trace.finagle;
+
+import static datadog.trace.finagle.RecordCapture.BINARY_ANNOTATION;
+import static datadog.trace.finagle.RecordCapture.BOOLEAN;
+import static datadog.trace.finagle.RecordCapture.BYTES;
+import static datadog.trace.finagle.RecordCapture.CLIENT_ADDR;
+import static datadog.trace.finagle.RecordCapture.CLIENT_RECV;
+import static datadog.trace.finagle.RecordCapture.CLIENT_RECV_ERROR;
+import static datadog.trace.finagle.RecordCapture.CLIENT_RECV_FRAGMENT;
+import static datadog.trace.finagle.RecordCapture.CLIENT_SEND;
+import static datadog.trace.finagle.RecordCapture.CLIENT_SEND_FRAGMENT;
+import static datadog.trace.finagle.RecordCapture.DOUBLE;
+import static datadog.trace.finagle.RecordCapture.HAS_DURATION;
+import static datadog.trace.finagle.RecordCapture.INT;
+import static datadog.trace.finagle.RecordCapture.LOCAL_ADDR;
+import static datadog.trace.finagle.RecordCapture.LONG;
+import static datadog.trace.finagle.RecordCapture.MAGIC;
+import static datadog.trace.finagle.RecordCapture.MAX_INTERNED_LENGTH;
+import static datadog.trace.finagle.RecordCapture.MAX_STRINGS;
+import static datadog.trace.finagle.RecordCapture.MESSAGE;
+import static datadog.trace.finagle.RecordCapture.PARENT_ID;
+import static datadog.trace.finagle.RecordCapture.RPC;
+import static datadog.trace.finagle.RecordCapture.SAMPLED;
+import static datadog.trace.finagle.RecordCapture.SAMPLED_KNOWN;
+import static datadog.trace.finagle.RecordCapture.SERVER_ADDR;
+import static datadog.trace.finagle.RecordCapture.SERVER_RECV;
+import static datadog.trace.finagle.RecordCapture.SERVER_RECV_FRAGMENT;
+import static datadog.trace.finagle.RecordCapture.SERVER_SEND;
+import static datadog.trace.finagle.RecordCapture.SERVER_SEND_ERROR;
+import static datadog.trace.finagle.RecordCapture.SERVER_SEND_FRAGMENT;
+import static datadog.trace.finagle.RecordCapture.SERVICE_NAME;
+import static datadog.trace.finagle.RecordCapture.STRING;
+import static datadog.trace.finagle.RecordCapture.TERMINAL;
+import static datadog.trace.finagle.RecordCapture.TRACE_ID;
+import static datadog.trace.finagle.RecordCapture.TRACE_ID_HIGH;
+import static datadog.trace.finagle.RecordCapture.TRACE_ID_SLOTS;
+import static datadog.trace.finagle.RecordCapture.VERSION;
+import static datadog.trace.finagle.RecordCapture.WIRE_RECV;
+import static datadog.trace.finagle.RecordCapture.WIRE_RECV_ERROR;
+import static datadog.trace.finagle.RecordCapture.WIRE_SEND;
+
+import com.twitter.finagle.tracing.Annotation;
+import com.twitter.finagle.tracing.Flags;
+import com.twitter.finagle.tracing.Record;
+import com.twitter.finagle.tracing.SpanId;
+import com.twitter.finagle.tracing.TraceId;
+import com.twitter.util.Duration;
+import com.twitter.util.Time;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import scala.Option;
+
+/** Reads the records written by {@link RecordCapture}, in the order they were captured */
+final class CaptureReader implements Closeable {
+  private final DataInputStream in;
+
+  private final TraceId[] traceIdSlots = new TraceId[TRACE_ID_SLOTS];
+  private long nextTraceIdIndex;
+  private final List<String> strings = new ArrayList<>();
+  private long lastNanos;
+
+  CaptureReader(File path) throws IOException {
+    in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 64 * 1024));
+    try {
+      if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+        throw new IOException(path + " is not a record capture");
+      }
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /** @return The next record, or null at the end of the capture */
+  Record next() throws IOException {
+    int tag = in.read();
+    if (tag < 0) {
+      return null;
+    }
+
+    try {
+      TraceId traceId = readTraceId();
+      lastNanos += readSignedVarLong();
+      Option<Duration> duration =
+          (tag & HAS_DURATION) != 0
+              ? Option.apply(Duration.fromNanoseconds(readVarLong()))
+              : Option.empty();
+      Annotation annotation = readAnnotation(tag & ~HAS_DURATION);
+      return new Record(traceId, Time.fromNanoseconds(lastNanos), annotation, duration);
+    } catch (EOFException e) {
+      // The last record is cut short when the capture was not closed
+      return null;
+    }
+  }
+
+  private TraceId readTraceId() throws IOException {
+    long reference = readVarLong();
+    if (reference > 0) {
+      return traceIdSlots[(int) ((nextTraceIdIndex - reference) % TRACE_ID_SLOTS)];
+    }
+
+    int fields = in.readUnsignedByte();
+    SpanId spanId = SpanId.apply(in.readLong());
+    Option<SpanId> traceIdLow =
+        (fields & TRACE_ID) != 0 ? Option.apply(SpanId.apply(in.readLong())) : Option.empty();
+    Option<SpanId> parentId =
+        (fields & PARENT_ID) != 0 ? Option.apply(SpanId.apply(in.readLong())) : Option.empty();
+    Option<SpanId> traceIdHigh =
+        (fields & TRACE_ID_HIGH) != 0 ? Option.apply(SpanId.apply(in.readLong())) : Option.empty();
+    Option<Object> sampled =
+        (fields & SAMPLED_KNOWN) != 0 ? Option.apply((fields & SAMPLED) != 0) : Option.empty();
+    Flags flags = Flags.apply(readVarLong());
+
+    TraceId traceId =
+        TraceId.apply(
+            traceIdLow, parentId, spanId, sampled, flags, traceIdHigh, (fields & TERMINAL) != 0);
+    traceIdSlots[(int) (nextTraceIdIndex++ % TRACE_ID_SLOTS)] = traceId;
+    return traceId;
+  }
+
+  private Annotation readAnnotation(int tag) throws IOException {
+    switch (tag) {
+      case CLIENT_SEND:
+        return Annotation.ClientSend$.MODULE$;
+      case CLIENT_RECV:
+        return Annotation.ClientRecv$.MODULE$;
+      case SERVER_SEND:
+        return Annotation.ServerSend$.MODULE$;
+      case SERVER_RECV:
+        return Annotation.ServerRecv$.MODULE$;
+      case WIRE_SEND:
+        return Annotation.WireSend$.MODULE$;
+      case WIRE_RECV:
+        return Annotation.WireRecv$.MODULE$;
+      case CLIENT_SEND_FRAGMENT:
+        return Annotation.ClientSendFragment$.MODULE$;
+      case CLIENT_RECV_FRAGMENT:
+        return Annotation.ClientRecvFragment$.MODULE$;
+      case SERVER_SEND_FRAGMENT:
+        return Annotation.ServerSendFragment$.MODULE$;
+      case SERVER_RECV_FRAGMENT:
+        return Annotation.ServerRecvFragment$.MODULE$;
+      case WIRE_RECV_ERROR:
+        return new Annotation.WireRecvError(readString());
+      case CLIENT_RECV_ERROR:
+        return new Annotation.ClientRecvError(readString());
+      case SERVER_SEND_ERROR:
+        return new Annotation.ServerSendError(readString());
+      case MESSAGE:
+        return new Annotation.Message(readString());
+      case SERVICE_NAME:
+        return new Annotation.ServiceName(readString());
+      case RPC:
+        return new Annotation.Rpc(readString());
+      case LOCAL_ADDR:
+        return new Annotation.LocalAddr(readAddress());
+      case CLIENT_ADDR:
+        return new Annotation.ClientAddr(readAddress());
+      case SERVER_ADDR:
+        return new Annotation.ServerAddr(readAddress());
+      case BINARY_ANNOTATION:
+        return new Annotation.BinaryAnnotation(readString(), readValue());
+      default:
+        throw new IOException("Unknown annotation tag " + tag);
+    }
+  }
+
+  private Object readValue() throws IOException {
+    int type = in.readUnsignedByte();
+    switch (type) {
+      case BOOLEAN:
+        return in.readBoolean();
+      case INT:
+        return (int) readSignedVarLong();
+      case LONG:
+        return readSignedVarLong();
+      case DOUBLE:
+        return in.readDouble();
+      case BYTES:
+        byte[] bytes = new byte[(int) readVarLong()];
+        in.readFully(bytes);
+        return bytes;
+      case STRING:
+        return readString();
+      default:
+        throw new IOException("Unknown value type " + type);
+    }
+  }
+
+  private InetSocketAddress readAddress() throws IOException {
+    int length = (int) readVarLong();
+    if (length == 0) {
+      String host = readString();
+      return InetSocketAddress.createUnresolved(host, (int) readVarLong());
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new InetSocketAddress(InetAddress.getByAddress(bytes), (int) readVarLong());
+  }
+
+  private String readString() throws IOException {
+    long index = readVarLong();
+    if (index > 0) {
+      return strings.get((int) index - 1);
+    }
+
+    byte[] bytes = new byte[(int) readVarLong()];
+    in.readFully(bytes);
+    String value = new String(bytes, StandardCharsets.UTF_8);
+    if (strings.size() < MAX_STRINGS && bytes.length <= MAX_INTERNED_LENGTH) {
+      strings.add(value);
+    }
+    return value;
+  }
+
+  private long readSignedVarLong() throws IOException {
+    long value = readVarLong();
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private long readVarLong() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,88 @@
+package datadog.trace.finagle;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the health of the agent connection. After {@code failureThreshold} consecutive failed
+ * uploads the breaker opens and callers should stop doing work for the agent. Once the open period
+ * elapses a single probe is allowed through; a successful probe closes the breaker, a failed one
+ * re-opens it with a doubled period (up to {@code maxOpenNanos}).
+ *
+ * <p>Transitions are synchronized since concurrent uploads report to the same breaker, the state is
+ * volatile so it can be observed without locking.
+ */
+class CircuitBreaker {
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN;
+  }
+
+  private final int failureThreshold;
+  private final long minOpenNanos;
+  private final long maxOpenNanos;
+
+  private volatile State state = State.CLOSED;
+  private int consecutiveFailures = 0;
+  private long openNanos;
+  private long openUntil;
+
+  CircuitBreaker(int failureThreshold, long minOpenMillis, long maxOpenMillis) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.minOpenNanos = TimeUnit.MILLISECONDS.toNanos(minOpenMillis);
+    this.maxOpenNanos = Math.max(minOpenNanos, TimeUnit.MILLISECONDS.toNanos(maxOpenMillis));
+    this.openNanos = minOpenNanos;
+  }
+
+  /**
+   * @return True if a call to the agent should be attempted. When the open period has elapsed this
+   *     moves the breaker to {@link State#HALF_OPEN} and the caller is expected to probe.
+   */
+  synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+      case HALF_OPEN:
+        return true;
+      default:
+        if (System.nanoTime() - openUntil >= 0) {
+          state = State.HALF_OPEN;
+          return true;
+        }
+        return false;
+    }
+  }
+
+  synchronized void onSuccess() {
+    consecutiveFailures = 0;
+    openNanos = minOpenNanos;
+    state = State.CLOSED;
+  }
+
+  /** @return True if the failure opened the breaker */
+  synchronized boolean onFailure() {
+    if (state == State.HALF_OPEN) {
+      openNanos = Math.min(openNanos * 2, maxOpenNanos);
+      open();
+      return true;
+    } else if (state == State.CLOSED && ++consecutiveFailures >= failureThreshold) {
+      open();
+      return true;
+    }
+    return false;
+  }
+
+  private void open() {
+    state = State.OPEN;
+    openUntil = System.nanoTime() + openNanos;
+  }
+
+  /** @return How long until a probe is allowed, at least one millisecond */
+  synchronized long remainingOpenMillis() {
+    long remaining = TimeUnit.NANOSECONDS.toMillis(openUntil - System.nanoTime());
+    return Math.max(1, remaining);
+  }
+
+  State getState() {
+    return state;
+  }
+}
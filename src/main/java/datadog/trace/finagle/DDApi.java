@@ -2,16 +2,30 @@ package datadog.trace.finagle;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twitter.finagle.stats.Counter;
+import com.twitter.finagle.stats.Gauge;
+import com.twitter.finagle.stats.Stat;
+import com.twitter.finagle.stats.StatsReceiver;
+import com.twitter.finagle.stats.StatsReceivers;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import org.msgpack.jackson.dataformat.MessagePackFactory;
 import org.slf4j.Logger;
@@ -30,6 +44,34 @@ class DDApi implements Closeable {
   private static final int MAX_QUEUED_TRACES = 10000;
   private static final int MAX_TRACES_PER_REQUEST = 500;
 
+  // Retries are for transient failures such as an agent restart.  Once several uploads in a row
+  // have failed the circuit breaker opens and the writer stops serializing until a probe succeeds
+  private static final int MAX_RETRIES = Settings.getInt("agent.retries", 3);
+  private static final long INITIAL_BACKOFF_MILLIS =
+      Math.max(1, Settings.getLong("agent.backoff.initial.ms", 100));
+  private static final long MAX_BACKOFF_MILLIS =
+      Math.max(INITIAL_BACKOFF_MILLIS, Settings.getLong("agent.backoff.max.ms", 2000));
+  private static final int BREAKER_FAILURE_THRESHOLD = Settings.getInt("agent.breaker.failures", 3);
+  private static final long BREAKER_OPEN_MILLIS = Settings.getLong("agent.breaker.open.ms", 1000);
+  private static final long BREAKER_MAX_OPEN_MILLIS =
+      Settings.getLong("agent.breaker.max.open.ms", 30000);
+
+  // Optional on-disk spool for batches that could not be delivered.  Disabled unless a path is set
+  private static final String SPOOL_PATH = Settings.getString("spool.path", null);
+  private static final long SPOOL_MAX_BYTES = Settings.getLong("spool.max.bytes", 64L << 20);
+  private static final int SPOOL_REPLAY_RATE = Settings.getInt("spool.replay.rate", 10);
+
+  // Uploads in flight at once.  Uploads run on the execution backend while the writer serializes
+  // the next batch, except with 1 on platform threads where the writer thread uploads itself
+  private static final int UPLOAD_CONCURRENCY =
+      Math.max(1, Settings.getInt("agent.upload.concurrency", 1));
+
+  // An empty msgpack array.  The agent accepts it, so it is used to probe for recovery
+  private static final byte[] EMPTY_PAYLOAD = {(byte) 0x90};
+
+  // Queued on close to wake the writer up, it is never sent
+  private static final PendingTrace WAKE_UP = new PendingTrace(null);
+
   private static final String TRACES_ENDPOINT_V4 = "/v0.4/traces";
   private static final long MILLISECONDS_BETWEEN_ERROR_LOG = TimeUnit.MINUTES.toMillis(5);
 
@@ -42,18 +84,103 @@ class DDApi implements Closeable {
   private final String tracesEndpoint;
   private volatile long nextAllowedLogTime = 0;
   private final Thread writerThread;
+  private final ExecutorService uploader;
+  private final Semaphore uploadPermits = new Semaphore(UPLOAD_CONCURRENCY);
   private volatile boolean running = true;
+  // Once set the writer sends what is queued and exits
+  private volatile boolean closing = false;
+
+  private final CircuitBreaker breaker =
+      new CircuitBreaker(BREAKER_FAILURE_THRESHOLD, BREAKER_OPEN_MILLIS, BREAKER_MAX_OPEN_MILLIS);
+
+  private final TraceSpool spool;
+  private final long replayIntervalNanos =
+      TimeUnit.SECONDS.toNanos(1) / Math.max(1, SPOOL_REPLAY_RATE);
+  private long nextReplayTime = 0;
 
   private final BlockingQueue<PendingTrace> tracesToBeWritten =
       new ArrayBlockingQueue<>(MAX_QUEUED_TRACES);
 
-  DDApi(final String host, final int port) {
+  private final StatsReceiver statsReceiver;
+  private final Counter droppedTraces;
+  private final Counter spooledTraces;
+  private final Counter sentTraces;
+  private final Counter requestErrors;
+  private final Counter retries;
+  private final Counter breakerOpened;
+  private final Stat batchSize;
+  private final Stat payloadBytes;
+  private final Stat serializationTime;
+  private final Stat requestLatency;
+  private final List<Gauge> gauges = new ArrayList<>();
+  // Counters by response code, created on first use by the writer or upload threads
+  private final Map<Integer, Counter> statusCounters = new ConcurrentHashMap<>();
+
+  DDApi(final String host, final int port, final StatsReceiver statsReceiver) {
+    this(host, port, statsReceiver, ExecutionBackends.get());
+  }
+
+  DDApi(
+      final String host,
+      final int port,
+      final StatsReceiver statsReceiver,
+      final ExecutionBackend backend) {
     this.tracesEndpoint = "http://" + host + ":" + port + TRACES_ENDPOINT_V4;
-    writerThread = new Thread(this::collectAndSendTraces, "dd-trace-writer");
-    writerThread.setDaemon(true);
+    this.spool = openSpool(host, port);
+
+    this.statsReceiver = statsReceiver;
+    droppedTraces = statsReceiver.counter("queue", "dropped");
+    spooledTraces = statsReceiver.counter("spool", "traces");
+    sentTraces = statsReceiver.counter("sent_traces");
+    requestErrors = statsReceiver.counter("request_errors");
+    retries = statsReceiver.counter("retries");
+    breakerOpened = statsReceiver.counter("circuit_breaker", "opened");
+    batchSize = statsReceiver.stat("batch_traces");
+    payloadBytes = statsReceiver.stat("payload_bytes");
+    serializationTime = statsReceiver.stat("serialization_us");
+    requestLatency = statsReceiver.stat("request_latency_ms");
+
+    gauges.add(
+        StatsReceivers.addGauge(
+            statsReceiver, () -> (float) tracesToBeWritten.size(), "queue", "size"));
+    gauges.add(
+        StatsReceivers.addGauge(
+            statsReceiver,
+            () -> breaker.getState() == CircuitBreaker.State.CLOSED ? 0f : 1f,
+            "circuit_breaker",
+            "open"));
+    if (spool != null) {
+      gauges.add(
+          StatsReceivers.addGauge(statsReceiver, () -> (float) spool.size(), "spool", "batches"));
+    }
+
+    uploader =
+        UPLOAD_CONCURRENCY > 1 || backend.hasVirtualUploads()
+            ? backend.newUploadExecutor("dd-trace-upload", UPLOAD_CONCURRENCY)
+            : null;
+
+    writerThread = backend.newThread("dd-trace-writer", this::collectAndSendTraces);
     writerThread.start();
   }
 
+  /** Each agent has its own spool file, named after the configured path and the agent address */
+  private static TraceSpool openSpool(final String host, final int port) {
+    if (SPOOL_PATH == null || SPOOL_PATH.isEmpty()) {
+      return null;
+    }
+
+    final File path =
+        new File(SPOOL_PATH + "-" + host.replaceAll("[^A-Za-z0-9.-]", "_") + "-" + port);
+    try {
+      TraceSpool spool = new TraceSpool(path, SPOOL_MAX_BYTES);
+      log.debug("Spooling undelivered traces to {} ({} batches pending)", path, spool.size());
+      return spool;
+    } catch (final IOException e) {
+      log.warn("Unable to open trace spool {}. Spooling disabled", path, e);
+      return null;
+    }
+  }
+
   private static HttpURLConnection getHttpURLConnection(final String endpoint) throws IOException {
     final HttpURLConnection httpCon;
     final URL url = new URL(endpoint);
@@ -72,8 +199,24 @@ class DDApi implements Closeable {
     return httpCon;
   }
 
+  /** @return Fraction of the writer queue in use */
+  double getQueueFill() {
+    return (double) tracesToBeWritten.size() / MAX_QUEUED_TRACES;
+  }
+
+  /** @return CPU time used by the writer thread in nanoseconds, or -1 if it can't be measured */
+  long getWriterCpuNanos() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!threads.isThreadCpuTimeSupported() || !threads.isThreadCpuTimeEnabled()) {
+      return -1;
+    }
+    return threads.getThreadCpuTime(writerThread.getId());
+  }
+
   public void sendTrace(PendingTrace pendingTrace) {
+    // Called on request threads, so a full queue drops the trace rather than spooling it here
     if (!tracesToBeWritten.offer(pendingTrace)) {
+      droppedTraces.incr();
       logWithThrottling("Queue full.  Trace dropped");
     }
   }
@@ -81,62 +224,351 @@ class DDApi implements Closeable {
   private void collectAndSendTraces() {
     while (running) {
       try {
-        List<List<Span>> traces = new ArrayList<>();
+        // While the agent is down traces stay queued, or are spooled when a spool is configured
+        awaitAgent();
 
-        // After the first trace is ready, use the nonblocking version
-        PendingTrace trace = tracesToBeWritten.take();
-        do {
-          if (trace.lockWrite()) {
-            traces.add(trace.getSpans());
+        final PendingTrace trace;
+        if (closing) {
+          // Spooled batches stay on disk for the next process
+          trace = tracesToBeWritten.poll();
+          if (trace == null) {
+            return;
           }
+        } else {
+          // Spooled batches are replayed at the configured rate, live traces are sent in between
+          long replayWait = replaySpooled();
 
-          if (traces.size() == MAX_TRACES_PER_REQUEST) {
-            break;
-          }
-          trace = tracesToBeWritten.poll();
-        } while (trace != null);
+          // After the first trace is ready, use the nonblocking version
+          trace =
+              replayWait > 0
+                  ? tracesToBeWritten.poll(replayWait, TimeUnit.NANOSECONDS)
+                  : tracesToBeWritten.take();
+        }
 
-        doSend(traces);
+        if (trace != null) {
+          List<List<Span>> traces = collectTraces(trace);
+          if (!traces.isEmpty()) {
+            doSend(traces);
+          }
+        }
       } catch (InterruptedException e) {
         // do nothing
       }
     }
   }
 
+  private List<List<Span>> collectTraces(PendingTrace trace) {
+    List<List<Span>> traces = new ArrayList<>();
+    do {
+      if (trace != WAKE_UP && trace.lockWrite()) {
+        traces.add(trace.getSpans());
+      }
+
+      if (traces.size() == MAX_TRACES_PER_REQUEST) {
+        break;
+      }
+      trace = tracesToBeWritten.poll();
+    } while (trace != null);
+
+    return traces;
+  }
+
+  /** Stops the writer at once, dropping the queued traces */
   @Override
   public void close() {
+    close(0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sends the queued traces and waits for the uploads in flight, then stops the writer. Whatever
+   * is not delivered when the timeout expires is dropped.
+   */
+  public void close(long timeout, TimeUnit unit) {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    closing = true;
+    // Nothing to wake up if the queue is full
+    tracesToBeWritten.offer(WAKE_UP);
+
+    try {
+      TimeUnit.NANOSECONDS.timedJoin(writerThread, Math.max(deadline - System.nanoTime(), 0));
+      if (uploader != null) {
+        uploader.shutdown();
+        uploader.awaitTermination(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
     running = false;
     writerThread.interrupt();
+    if (uploader != null) {
+      uploader.shutdownNow();
+    }
+
+    int undelivered = 0;
+    for (PendingTrace trace : tracesToBeWritten) {
+      if (trace != WAKE_UP) {
+        undelivered++;
+      }
+    }
+    if (undelivered > 0) {
+      droppedTraces.incr(undelivered);
+      log.debug("{} traces not sent before the tracer was closed", undelivered);
+    }
+
+    for (Gauge gauge : gauges) {
+      gauge.remove();
+    }
+
+    if (spool != null) {
+      try {
+        spool.close();
+      } catch (final IOException e) {
+        log.debug("Error while closing the trace spool", e);
+      }
+    }
+  }
+
+  /**
+   * Blocks while the circuit breaker is open. Once the open period has elapsed an empty payload is
+   * sent to check whether the agent is back.
+   */
+  private void awaitAgent() throws InterruptedException {
+    while (true) {
+      if (breaker.allowRequest()) {
+        if (breaker.getState() != CircuitBreaker.State.HALF_OPEN || probe()) {
+          return;
+        }
+      } else if (spool != null) {
+        // Move queued traces to disk so the queue doesn't overflow while the agent is down
+        PendingTrace trace =
+            closing
+                ? tracesToBeWritten.poll()
+                : tracesToBeWritten.poll(breaker.remainingOpenMillis(), TimeUnit.MILLISECONDS);
+        if (trace != null) {
+          List<List<Span>> traces = collectTraces(trace);
+          if (!traces.isEmpty()) {
+            spool(traces);
+          }
+        } else if (closing) {
+          // Everything is on disk, no need to wait for the agent
+          return;
+        }
+      } else {
+        Thread.sleep(breaker.remainingOpenMillis());
+      }
+    }
   }
 
-  private void doSend(final List<List<Span>> traces) {
+  /**
+   * Sends the oldest spooled batch if the replay rate allows it.
+   *
+   * @return Nanoseconds until the next batch may be replayed, 0 if the spool is empty
+   */
+  private long replaySpooled() throws InterruptedException {
+    if (spool == null || spool.isEmpty()) {
+      return 0;
+    }
+
+    long now = System.nanoTime();
+    if (now - nextReplayTime >= 0) {
+      nextReplayTime = now + replayIntervalNanos;
+
+      TraceSpool.Batch batch = spool.peek();
+      if (upload(batch.payload, batch.traceCount)) {
+        spool.remove(batch);
+      }
+
+      if (spool.isEmpty()) {
+        return 0;
+      }
+    }
+    return Math.max(1, nextReplayTime - System.nanoTime());
+  }
+
+  private void spool(final List<List<Span>> traces) {
     try {
-      final HttpURLConnection httpCon = getHttpURLConnection(tracesEndpoint);
-      httpCon.setRequestProperty(X_DATADOG_TRACE_COUNT, String.valueOf(traces.size()));
+      spool(serialize(traces), traces.size());
+    } catch (final IOException e) {
+      logWithThrottling("Error while serializing {} traces.", traces.size(), e);
+    }
+  }
 
-      try (final OutputStream out = httpCon.getOutputStream()) {
-        objectMapper.writeValue(out, traces);
+  private void spool(final byte[] payload, final int traceCount) {
+    if (spool.append(payload, traceCount)) {
+      spooledTraces.incr(traceCount);
+    } else {
+      droppedTraces.incr(traceCount);
+      logWithThrottling("Batch larger than the spool. {} traces dropped", traceCount);
+    }
+  }
+
+  private boolean probe() {
+    try {
+      if (put(EMPTY_PAYLOAD, 0) == 200) {
+        log.debug("DD agent is reachable again");
+        breaker.onSuccess();
+        return true;
       }
+    } catch (final IOException e) {
+      // fall through
+    }
+
+    onBreakerFailure();
+    return false;
+  }
+
+  private void onBreakerFailure() {
+    if (breaker.onFailure()) {
+      breakerOpened.incr();
+    }
+  }
+
+  /** Encodes traces the way they are sent to the agent */
+  byte[] serialize(final List<List<Span>> traces) throws IOException {
+    return objectMapper.writeValueAsBytes(traces);
+  }
+
+  private void doSend(final List<List<Span>> traces) throws InterruptedException {
+    final byte[] payload;
+    try {
+      final Object event = JfrEvents.beginSerialization();
+      final long start = System.nanoTime();
+      payload = serialize(traces);
+      serializationTime.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+      JfrEvents.endSerialization(event, traces, payload.length);
+      batchSize.add(traces.size());
+      payloadBytes.add(payload.length);
 
       if (log.isDebugEnabled()) {
         log.debug("Sending traces {}", jsonMapper.writeValueAsString(traces));
       }
+    } catch (final IOException e) {
+      logWithThrottling("Error while serializing {} traces.", traces.size(), e);
+      return;
+    }
 
-      skipAllContent(httpCon);
+    if (uploader == null) {
+      deliver(payload, traces.size());
+      return;
+    }
 
-      final int responseCode = httpCon.getResponseCode();
-      if (responseCode == 200) {
-        log.trace("Succesfully sent {} traces to the DD agent.", traces.size());
+    // Waiting for a permit keeps the queue as the only buffer while the agent is slow
+    uploadPermits.acquire();
+    try {
+      uploader.execute(
+          () -> {
+            try {
+              deliver(payload, traces.size());
+            } catch (InterruptedException e) {
+              droppedTraces.incr(traces.size());
+            } finally {
+              uploadPermits.release();
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      uploadPermits.release();
+      droppedTraces.incr(traces.size());
+    }
+  }
+
+  private void deliver(final byte[] payload, final int traceCount) throws InterruptedException {
+    if (!upload(payload, traceCount)) {
+      if (spool != null) {
+        spool(payload, traceCount);
       } else {
-        logWithThrottling(
-            "Error while sending {} traces to the DD agent. Status: {}, ResponseMessage: {}",
-            traces.size(),
-            responseCode,
-            httpCon.getResponseMessage());
+        droppedTraces.incr(traceCount);
+      }
+    }
+  }
+
+  /**
+   * Sends a payload, retrying transient failures.
+   *
+   * @return False if the agent could not be reached, true if the payload was accepted or rejected
+   */
+  private boolean upload(final byte[] payload, final int traceCount) throws InterruptedException {
+    long backoff = INITIAL_BACKOFF_MILLIS;
+    for (int attempt = 0; ; attempt++) {
+      int responseCode = -1;
+      IOException error = null;
+      try {
+        responseCode = put(payload, traceCount);
+      } catch (final IOException e) {
+        requestErrors.incr();
+        error = e;
+      }
+
+      if (responseCode == 200) {
+        sentTraces.incr(traceCount);
+        log.trace("Succesfully sent {} traces to the DD agent.", traceCount);
+        breaker.onSuccess();
+        return true;
+      }
+
+      final boolean retryable = error != null || isRetryable(responseCode);
+      if (!retryable || attempt >= MAX_RETRIES) {
+        if (retryable) {
+          onBreakerFailure();
+        } else {
+          // The agent answered, so it is up even though it rejected the payload
+          breaker.onSuccess();
+        }
+
+        if (error != null) {
+          logWithThrottling("Error while sending {} traces to the DD agent.", traceCount, error);
+        } else {
+          logWithThrottling(
+              "Error while sending {} traces to the DD agent. Status: {}",
+              traceCount,
+              responseCode);
+        }
+        return !retryable;
+      }
+
+      retries.incr();
+      Thread.sleep(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+      backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+    }
+  }
+
+  private int put(final byte[] payload, final int traceCount) throws IOException {
+    final HttpURLConnection httpCon = getHttpURLConnection(tracesEndpoint);
+    httpCon.setRequestProperty(X_DATADOG_TRACE_COUNT, String.valueOf(traceCount));
+    httpCon.setFixedLengthStreamingMode(payload.length);
+
+    final Object event = JfrEvents.beginSend();
+    final long start = System.nanoTime();
+    int responseCode = -1;
+    try {
+      try (final OutputStream out = httpCon.getOutputStream()) {
+        out.write(payload);
       }
+
+      responseCode = httpCon.getResponseCode();
+    } finally {
+      JfrEvents.endSend(event, traceCount, payload.length, responseCode);
+    }
+    requestLatency.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    statusCounter(responseCode).incr();
+    try {
+      skipAllContent(httpCon);
     } catch (final IOException e) {
-      logWithThrottling("Error while sending {} traces to the DD agent.", traces.size(), e);
+      // Error statuses make the input stream throw after draining the error stream
+      if (responseCode < 400) {
+        throw e;
+      }
     }
+    return responseCode;
+  }
+
+  private Counter statusCounter(final int responseCode) {
+    return statusCounters.computeIfAbsent(
+        responseCode, code -> statsReceiver.counter("status", String.valueOf(code)));
+  }
+
+  private static boolean isRetryable(final int responseCode) {
+    return responseCode == 408 || responseCode == 429 || responseCode >= 500;
   }
 
   /* Ensure we read the full response. Borrowed from https://github.com/openzipkin/zipkin-reporter-java/blob/2eb169e/urlconnection/src/main/java/zipkin2/reporter/urlconnection/URLConnectionSender.java#L231-L252 */
@@ -1,6 +1,9 @@
 package datadog.trace.finagle;
 
 import com.google.auto.service.AutoService;
+import com.twitter.finagle.stats.Counter;
+import com.twitter.finagle.stats.DefaultStatsReceiver;
+import com.twitter.finagle.stats.StatsReceiver;
 import com.twitter.finagle.tracing.Record;
 import com.twitter.finagle.tracing.SpanId;
 import com.twitter.finagle.tracing.TraceId;
@@ -8,12 +11,17 @@ import com.twitter.finagle.tracing.Tracer;
 import datadog.trace.api.Config;
 import java.io.Closeable;
 import java.math.BigInteger;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import scala.Option;
@@ -22,8 +30,11 @@ import scala.Option;
 public class DatadogTracer implements Tracer, Closeable {
   private static final Logger log = LoggerFactory.getLogger(DatadogTracer.class);
 
-  private static final long FLUSH_PERIOD = TimeUnit.SECONDS.toMillis(1);
   private static final int FLUSHED_TRACES_CACHE_SIZE = 500;
+  private static final int GOVERNED_TRACES_CACHE_SIZE = 10000;
+  // A record takes microseconds, close() checks often at first and backs off
+  private static final long MIN_CLOSE_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+  private static final long MAX_CLOSE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
 
   // Finagle sometimes sends records after a trace was completed.  This results in the new partial
   // trace overriding the old data.  The cache keeps a list of ids that were already complete to
@@ -32,33 +43,139 @@ public class DatadogTracer implements Tracer, Closeable {
 
   private final Map<SpanId, PendingTrace> traces = new ConcurrentHashMap<>();
 
-  private final ScheduledExecutorService executorService;
-  private final DDApi ddApi;
-  private final String serviceName;
+  // Rate at which the governor sampled a trace, kept until the trace's first record.  Traces with
+  // an upstream sampling decision never get here, so they don't report a sample rate
+  private final Map<SpanId, Double> governedTraces =
+      Collections.synchronizedMap(
+          new LinkedHashMap<SpanId, Double>() {
+            protected boolean removeEldestEntry(Map.Entry<SpanId, Double> eldest) {
+              return size() > GOVERNED_TRACES_CACHE_SIZE;
+            }
+          });
 
+  // The runtime is started by the first record, so tracers that are never used cost nothing.
+  // Written under the tracer's lock
+  private volatile TracerRuntime runtime;
+  private ScheduledFuture<?> flushTask;
+  private final IntSupplier pendingTraceCount = traces::size;
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  // Records between the closed check and their trace being added to the traces.  close() waits
+  // for them, so its final flush sees every trace
+  private final LongAdder recordsInFlight = new LongAdder();
+  // Null agent host means the settings are read from the Config when the runtime starts
+  private String serviceName;
+  private String agentHost;
+  private int port;
+  private final StatsReceiver statsReceiver;
+  // Read from the settings when the runtime starts, published with it
+  private RecordFilter recordFilter;
+
+  private final Counter completedTraces;
+  private final Counter expiredTraces;
+  private final Counter lateRecords;
+  private final Counter filteredRecords;
+  private final Counter unsampledTraces;
+
+  /** Reads the service name, agent host and port from the Datadog Config when the tracer starts */
   public DatadogTracer() {
-    this(Config.get().getServiceName(), Config.get().getAgentHost(), Config.get().getAgentPort());
+    this(null, null, 0, DefaultStatsReceiver.get());
   }
 
+  /**
+   * @param agentHost If null, the service name, agent host and port are all read from the Datadog
+   *     Config when the tracer starts and the arguments are ignored
+   */
   public DatadogTracer(String serviceName, String agentHost, int port) {
-    executorService =
-        Executors.newSingleThreadScheduledExecutor(
-            r -> {
-              Thread thread = new Thread(r, "dd-tracer-flush");
-              thread.setDaemon(true);
-              return thread;
-            });
-    executorService.scheduleAtFixedRate(
-        this::flush, FLUSH_PERIOD, FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+    this(serviceName, agentHost, port, DefaultStatsReceiver.get());
+  }
+
+  /**
+   * Tracers reporting to the same agent share their threads, writer queue and overhead budget, see
+   * {@link TracerRuntime}.
+   *
+   * @param agentHost If null, the service name, agent host and port are all read from the Datadog
+   *     Config when the tracer starts and the arguments are ignored
+   * @param statsReceiver Receives the tracer's own metrics, scoped under {@code dd_tracer}
+   */
+  public DatadogTracer(
+      String serviceName, String agentHost, int port, StatsReceiver statsReceiver) {
+    StatsReceiver scoped = statsReceiver.scope("dd_tracer");
+    completedTraces = scoped.counter("traces", "completed");
+    expiredTraces = scoped.counter("traces", "expired");
+    lateRecords = scoped.counter("late_records");
+    filteredRecords = scoped.counter("filtered_records");
+    unsampledTraces = scoped.counter("governor", "unsampled_traces");
 
-    this.ddApi = new DDApi(agentHost, port);
     this.serviceName = serviceName;
+    this.agentHost = agentHost;
+    this.port = port;
+    this.statsReceiver = scoped;
 
     // Double configSampleRate = datadog.trace.api.Config.get().getTraceSampleRate()
   }
 
+  /** @return The runtime, started if needed, or null once the tracer is closed */
+  private synchronized TracerRuntime start() {
+    if (runtime == null && !closed.get()) {
+      if (agentHost == null) {
+        Config config = Config.get();
+        serviceName = config.getServiceName();
+        agentHost = config.getAgentHost();
+        port = config.getAgentPort();
+      }
+
+      recordFilter = RecordFilter.fromSettings();
+      TracerRuntime started = TracerRuntime.acquire(agentHost, port, statsReceiver);
+      started.addPendingTraceCount(pendingTraceCount);
+      flushTask =
+          started
+              .getScheduler()
+              .scheduleAtFixedRate(
+                  this::flush,
+                  TracerRuntime.FLUSH_PERIOD,
+                  TracerRuntime.FLUSH_PERIOD,
+                  TimeUnit.MILLISECONDS);
+      runtime = started;
+    }
+    return runtime;
+  }
+
   @Override
   public void record(Record record) {
+    RecordCapture capture = RecordCapture.get();
+    if (capture != null) {
+      // Captured before filtering, so the filters can be tuned on a replay
+      capture.write(record);
+    }
+
+    if (closed.get()) {
+      return;
+    }
+    recordsInFlight.increment();
+    try {
+      // Checked again now that close() waits for this record
+      if (closed.get()) {
+        return;
+      }
+      final TracerRuntime runtime = this.runtime != null ? this.runtime : start();
+      if (runtime == null) {
+        return;
+      }
+
+      if (!recordFilter.accept(record.annotation())) {
+        filteredRecords.incr();
+        return;
+      }
+
+      addRecord(runtime, record);
+    } finally {
+      recordsInFlight.decrement();
+    }
+  }
+
+  private void addRecord(TracerRuntime runtime, Record record) {
+    runtime.getGovernor().recordReceived();
+    Object event = JfrEvents.beginRecord();
     log.debug("Record {}", record);
     PendingTrace pendingTrace =
         traces.computeIfAbsent(
@@ -67,9 +184,10 @@ public class DatadogTracer implements Tracer, Closeable {
               BigInteger spanId = new BigInteger(record.traceId().spanId().toString(), 16);
               if (!flushedSpans.contains(spanId)) {
                 log.debug("Starting new trace {}", key);
-                return new PendingTrace(serviceName);
+                return newTrace(key);
               } else {
                 log.debug("Received record for already reported span {}", record);
+                lateRecords.incr();
                 return null;
               }
             });
@@ -80,9 +198,21 @@ public class DatadogTracer implements Tracer, Closeable {
       if (pendingTrace.isComplete()) {
         addSpansToFlushed(pendingTrace);
         traces.remove(record.traceId().traceId());
-        ddApi.sendTrace(pendingTrace);
+        completedTraces.incr();
+        JfrEvents.traceCompleted(pendingTrace, false);
+        runtime.getApi().sendTrace(pendingTrace);
       }
     }
+
+    if (event != null) {
+      JfrEvents.endRecord(event, record.annotation(), traces.size());
+    }
+  }
+
+  /** @return A new trace, carrying the rate the governor sampled it at if it did */
+  PendingTrace newTrace(SpanId traceId) {
+    Double sampleRate = governedTraces.remove(traceId);
+    return new PendingTrace(serviceName, sampleRate != null ? sampleRate : 1.0);
   }
 
   private void addSpansToFlushed(PendingTrace pendingTrace) {
@@ -98,7 +228,22 @@ public class DatadogTracer implements Tracer, Closeable {
 
   @Override
   public Option<Object> sampleTrace(TraceId traceId) {
-    // TODO implement sampling
+    // Until the runtime starts nothing was recorded, so there is no overhead to shed
+    TracerRuntime runtime = this.runtime;
+    if (runtime == null) {
+      return Tracer.SomeTrue();
+    }
+
+    OverheadGovernor governor = runtime.getGovernor();
+    if (!governor.sample(traceId)) {
+      unsampledTraces.incr();
+      return Tracer.SomeFalse();
+    }
+
+    double sampleRate = governor.getSampleRate();
+    if (sampleRate < 1.0) {
+      governedTraces.put(traceId.traceId(), sampleRate);
+    }
     return Tracer.SomeTrue();
   }
 
@@ -107,22 +252,85 @@ public class DatadogTracer implements Tracer, Closeable {
     return traceId.getSampled().getOrElse(() -> true);
   }
 
+  /**
+   * Sends the pending traces, complete or not, and waits up to {@code
+   * dd.trace.finagle.close.timeout.ms} for them to be delivered.
+   */
   @Override
   public void close() {
-    executorService.shutdownNow();
-    ddApi.close();
+    close(Settings.getLong("close.timeout.ms", 5000), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sends the pending traces, complete or not, and waits for them to be delivered. Traces not
+   * delivered when the timeout expires are dropped.
+   */
+  public void close(long timeout, TimeUnit unit) {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+
+    // Records that got past the closed check finish adding to their traces first
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    long wait = MIN_CLOSE_WAIT_NANOS;
+    while (recordsInFlight.sum() > 0) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        break;
+      }
+      LockSupport.parkNanos(Math.min(wait, remaining));
+      wait = Math.min(wait * 2, MAX_CLOSE_WAIT_NANOS);
+    }
+
+    RecordCapture capture = RecordCapture.get();
+    if (capture != null) {
+      capture.flush();
+    }
+
+    TracerRuntime runtime;
+    synchronized (this) {
+      runtime = this.runtime;
+    }
+    if (runtime == null) {
+      return;
+    }
+
+    flushTask.cancel(false);
+    flush(runtime.getApi(), true);
+    runtime.removePendingTraceCount(pendingTraceCount);
+    runtime.release(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
   }
 
   private void flush() {
+    flush(runtime.getApi(), false);
+  }
+
+  /** @param all Also sends the traces that are still incomplete */
+  private void flush(DDApi ddApi, boolean all) {
+    final Object event = JfrEvents.beginFlush();
+    int completed = 0;
+    int expired = 0;
+
     final Iterator<Map.Entry<SpanId, PendingTrace>> iterator = traces.entrySet().iterator();
 
     while (iterator.hasNext()) {
       final Map.Entry<SpanId, PendingTrace> next = iterator.next();
-      if (next.getValue().isComplete()) {
+      if (all || next.getValue().isComplete()) {
+        boolean isExpired = !next.getValue().isComplete() || next.getValue().isExpired();
+        if (isExpired) {
+          expired++;
+          expiredTraces.incr();
+        } else {
+          completed++;
+          completedTraces.incr();
+        }
+        JfrEvents.traceCompleted(next.getValue(), isExpired);
         addSpansToFlushed(next.getValue());
         iterator.remove();
         ddApi.sendTrace(next.getValue());
       }
     }
+
+    JfrEvents.endFlush(event, completed, expired, traces.size());
   }
 }
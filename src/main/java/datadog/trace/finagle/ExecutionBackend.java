@@ -0,0 +1,22 @@
+package datadog.trace.finagle;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+/** Creates the threads the tracer runs on, see {@link ExecutionBackends} for how one is chosen */
+interface ExecutionBackend {
+  /** @return A single threaded scheduler for the periodic flush */
+  ScheduledExecutorService newScheduler(String name);
+
+  /** @return An unstarted thread for a long running loop such as the writer */
+  Thread newThread(String name, Runnable task);
+
+  /**
+   * @param concurrency The most uploads the caller runs at once
+   * @return An executor for blocking agent uploads
+   */
+  ExecutorService newUploadExecutor(String name, int concurrency);
+
+  /** @return True if upload threads are virtual, cheap enough to use even for a single upload */
+  boolean hasVirtualUploads();
+}
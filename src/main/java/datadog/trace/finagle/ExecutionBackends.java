@@ -0,0 +1,31 @@
+package datadog.trace.finagle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses the execution backend from {@code dd.trace.finagle.execution.backend}. This version is
+ * used before Java 21 and only offers platform threads; the multi-release jar replaces it on Java
+ * 21+ with one that also offers virtual threads.
+ */
+final class ExecutionBackends {
+  private static final Logger log = LoggerFactory.getLogger(ExecutionBackends.class);
+
+  private static final ExecutionBackend BACKEND =
+      create(Settings.getString("execution.backend", "auto"));
+
+  private ExecutionBackends() {}
+
+  static ExecutionBackend get() {
+    return BACKEND;
+  }
+
+  private static ExecutionBackend create(String name) {
+    if ("virtual".equals(name)) {
+      log.warn("Virtual threads require Java 21, using platform threads");
+    } else if (!"auto".equals(name) && !"platform".equals(name)) {
+      log.warn("Unknown execution backend {}, using platform threads", name);
+    }
+    return new PlatformThreadBackend();
+  }
+}
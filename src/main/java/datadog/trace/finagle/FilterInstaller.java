@@ -4,6 +4,8 @@ import com.google.auto.service.AutoService;
 import com.twitter.finagle.ServiceFactory;
 import com.twitter.finagle.Stack;
 import com.twitter.finagle.StackTransformer;
+import com.twitter.finagle.tracing.ClientTracingFilter;
+import com.twitter.finagle.tracing.ServerTracingFilter;
 import com.twitter.finagle.tracing.TraceInitializerFilter;
 
 @AutoService(StackTransformer.class)
@@ -15,6 +17,18 @@ public class FilterInstaller extends StackTransformer {
 
     @Override
     public <Req, Rep> Stack<ServiceFactory<Req, Rep>> apply(Stack<ServiceFactory<Req, Rep>> stack) {
-        return stack.replace(TraceInitializerFilter.role(), new ServerTraceInitializer());
+        // Client stacks propagate through Finagle's own filters
+        if (stack.contains(ClientTracingFilter.role())
+                || !stack.contains(ServerTracingFilter.role())) {
+            return stack;
+        }
+
+        // The protocol is only known from the stack params, so the choice is made by the module
+        if (stack.contains(TraceInitializerFilter.role())) {
+            return stack.replace(
+                    TraceInitializerFilter.role(), new ProtocolTraceInitializer<>(true));
+        }
+        return stack.insertBefore(
+                ServerTracingFilter.role(), new ProtocolTraceInitializer<>(false));
     }
 }
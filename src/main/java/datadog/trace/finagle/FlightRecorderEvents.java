@@ -0,0 +1,41 @@
+package datadog.trace.finagle;
+
+import java.util.List;
+
+/**
+ * Stand-in for the Flight Recorder events on Java 8, the events themselves are defined under
+ * {@code src/main/java11} and replace this class on Java 11+.
+ */
+final class FlightRecorderEvents {
+  private FlightRecorderEvents() {}
+
+  static boolean isAvailable() {
+    return false;
+  }
+
+  static Object beginRecord() {
+    return null;
+  }
+
+  static void endRecord(Object event, Object annotation, int pendingTraces) {}
+
+  static void traceCompleted(PendingTrace trace, boolean expired) {}
+
+  static Object beginFlush() {
+    return null;
+  }
+
+  static void endFlush(Object event, int completed, int expired, int pending) {}
+
+  static Object beginSerialization() {
+    return null;
+  }
+
+  static void endSerialization(Object event, List<List<Span>> traces, int bytes) {}
+
+  static Object beginSend() {
+    return null;
+  }
+
+  static void endSend(Object event, int traceCount, int bytes, int statusCode) {}
+}
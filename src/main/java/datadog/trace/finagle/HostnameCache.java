@@ -0,0 +1,157 @@
+package datadog.trace.finagle;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Peer host names, resolved in the background. Reverse DNS can block for seconds, so lookups never
+ * happen on the caller's thread: an address seen for the first time returns null and is queued for
+ * resolution, later calls return the cached name until it expires. Expired names keep being
+ * returned while they are refreshed.
+ */
+class HostnameCache {
+  private static final Logger log = LoggerFactory.getLogger(HostnameCache.class);
+
+  private static final int MAX_PENDING_LOOKUPS = 256;
+
+  private static final class Entry {
+    final String hostname;
+    final long expiration;
+
+    Entry(String hostname, long expiration) {
+      this.hostname = hostname;
+      this.expiration = expiration;
+    }
+  }
+
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final Function<InetAddress, String> lookup;
+  private final Map<InetAddress, Entry> entries = new ConcurrentHashMap<>();
+  private final Map<InetAddress, Boolean> pending = new ConcurrentHashMap<>();
+  private final ThreadPoolExecutor resolver;
+
+  HostnameCache(int maxEntries, long ttlMillis) {
+    this(maxEntries, ttlMillis, MAX_PENDING_LOOKUPS, HostnameCache::reverseLookup);
+  }
+
+  /** @param lookup Resolves an address to its host name, called on the resolver thread */
+  HostnameCache(
+      int maxEntries,
+      long ttlMillis,
+      int maxPendingLookups,
+      Function<InetAddress, String> lookup) {
+    this.maxEntries = maxEntries;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.lookup = lookup;
+
+    // The thread is only started once the first lookup is queued
+    resolver =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(maxPendingLookups),
+            r -> {
+              Thread thread = new Thread(r, "dd-hostname-resolver");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** @return The host name of the address, or null if it hasn't been resolved yet */
+  String getHostName(InetSocketAddress socketAddress) {
+    InetAddress address = socketAddress.getAddress();
+    String hostString = socketAddress.getHostString();
+    if (address == null) {
+      return hostString;
+    }
+
+    // Addresses created from a host name already know it and don't need a lookup.  The host
+    // string of an address created from an IP is that IP, possibly written differently than
+    // getHostAddress would, such as ::1
+    if (!isIpLiteral(hostString)) {
+      return hostString;
+    }
+
+    Entry entry = entries.get(address);
+    if (entry == null || System.nanoTime() - entry.expiration > 0) {
+      scheduleLookup(address);
+    }
+    return entry == null ? null : entry.hostname;
+  }
+
+  private void scheduleLookup(InetAddress address) {
+    if (pending.putIfAbsent(address, Boolean.TRUE) != null) {
+      return;
+    }
+
+    try {
+      resolver.execute(() -> resolve(address));
+    } catch (RejectedExecutionException e) {
+      // Too many lookups in flight, the address will be retried when it's seen again
+      pending.remove(address);
+    }
+  }
+
+  private void resolve(InetAddress address) {
+    try {
+      String hostname = lookup.apply(address);
+      if (entries.size() >= maxEntries) {
+        evict();
+      }
+      entries.put(address, new Entry(hostname, System.nanoTime() + ttlNanos));
+    } catch (Exception e) {
+      log.debug("Unable to resolve host name for {}", address, e);
+    } finally {
+      pending.remove(address);
+    }
+  }
+
+  private static String reverseLookup(InetAddress address) {
+    try {
+      // Without a cached name, getHostName performs the reverse lookup and falls back to the IP
+      return InetAddress.getByAddress(address.getAddress()).getHostName();
+    } catch (UnknownHostException e) {
+      // Only thrown for addresses of illegal length
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /** Host names never contain colons and never consist of only digits and dots */
+  private static boolean isIpLiteral(String host) {
+    if (host.indexOf(':') >= 0) {
+      return true;
+    }
+    for (int i = 0; i < host.length(); i++) {
+      char c = host.charAt(i);
+      if (c != '.' && (c < '0' || c > '9')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void evict() {
+    long now = System.nanoTime();
+    entries.values().removeIf(entry -> now - entry.expiration > 0);
+
+    Iterator<InetAddress> iterator = entries.keySet().iterator();
+    while (entries.size() >= maxEntries && iterator.hasNext()) {
+      iterator.next();
+      iterator.remove();
+    }
+  }
+}
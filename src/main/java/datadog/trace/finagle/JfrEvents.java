@@ -0,0 +1,75 @@
+package datadog.trace.finagle;
+
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Entry point for the tracer's Java Flight Recorder events. Events are passed around as {@code
+ * Object} so that callers never link against {@code jdk.jfr}; on JVMs without Flight Recorder
+ * every method is a no-op. When Flight Recorder is present but the event is disabled the begin
+ * methods return null after a single flag check and nothing is allocated.
+ */
+final class JfrEvents {
+  private static final Logger log = LoggerFactory.getLogger(JfrEvents.class);
+
+  private static final boolean AVAILABLE = isAvailable();
+
+  private JfrEvents() {}
+
+  private static boolean isAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event", false, JfrEvents.class.getClassLoader());
+      return FlightRecorderEvents.isAvailable();
+    } catch (ClassNotFoundException | LinkageError e) {
+      log.debug("Flight Recorder not available, tracer events disabled");
+      return false;
+    }
+  }
+
+  static Object beginRecord() {
+    return AVAILABLE ? FlightRecorderEvents.beginRecord() : null;
+  }
+
+  static void endRecord(Object event, Object annotation, int pendingTraces) {
+    if (event != null) {
+      FlightRecorderEvents.endRecord(event, annotation, pendingTraces);
+    }
+  }
+
+  static void traceCompleted(PendingTrace trace, boolean expired) {
+    if (AVAILABLE) {
+      FlightRecorderEvents.traceCompleted(trace, expired);
+    }
+  }
+
+  static Object beginFlush() {
+    return AVAILABLE ? FlightRecorderEvents.beginFlush() : null;
+  }
+
+  static void endFlush(Object event, int completed, int expired, int pending) {
+    if (event != null) {
+      FlightRecorderEvents.endFlush(event, completed, expired, pending);
+    }
+  }
+
+  static Object beginSerialization() {
+    return AVAILABLE ? FlightRecorderEvents.beginSerialization() : null;
+  }
+
+  static void endSerialization(Object event, List<List<Span>> traces, int bytes) {
+    if (event != null) {
+      FlightRecorderEvents.endSerialization(event, traces, bytes);
+    }
+  }
+
+  static Object beginSend() {
+    return AVAILABLE ? FlightRecorderEvents.beginSend() : null;
+  }
+
+  static void endSend(Object event, int traceCount, int bytes, int statusCode) {
+    if (event != null) {
+      FlightRecorderEvents.endSend(event, traceCount, bytes, statusCode);
+    }
+  }
+}
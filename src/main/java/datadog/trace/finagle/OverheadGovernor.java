@@ -0,0 +1,114 @@
+package datadog.trace.finagle;
+
+import com.twitter.finagle.tracing.TraceId;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the tracer within a resource budget by adjusting the sample rate of new traces. Once per
+ * flush the governor compares the record rate, pending traces, writer queue fill and writer thread
+ * CPU against their budgets. Over budget the rate is cut by at least half, with enough headroom it
+ * grows back until every trace is sampled again. Traces whose sampling was decided upstream are
+ * not affected.
+ */
+class OverheadGovernor {
+  // Below this fraction of every budget the sample rate is raised
+  private static final double HEADROOM = 0.7;
+  private static final double INCREASE_FACTOR = 1.25;
+  private static final double MIN_INCREASE = 0.01;
+
+  // Same hashing as the Datadog tracers, so a given trace id gets the same decision everywhere
+  private static final long KNUTH_FACTOR = 1111111111111111111L;
+
+  private final boolean enabled;
+  private final double maxRecordsPerSecond;
+  private final double maxPendingTraces;
+  private final double maxQueueFill;
+  private final double maxWriterCpu;
+  private final double minSampleRate;
+
+  private final LongAdder records = new LongAdder();
+  private long lastUpdate = System.nanoTime();
+  private long lastWriterCpu = -1;
+
+  private volatile double sampleRate = 1.0;
+  // Traces whose hashed id is below the threshold are sampled, compared on 53 bits
+  private volatile long threshold = 1L << 53;
+
+  OverheadGovernor(
+      boolean enabled,
+      double maxRecordsPerSecond,
+      double maxPendingTraces,
+      double maxQueueFill,
+      double maxWriterCpu,
+      double minSampleRate) {
+    this.enabled = enabled;
+    this.maxRecordsPerSecond = maxRecordsPerSecond;
+    this.maxPendingTraces = maxPendingTraces;
+    this.maxQueueFill = maxQueueFill;
+    this.maxWriterCpu = maxWriterCpu;
+    this.minSampleRate = minSampleRate;
+  }
+
+  static OverheadGovernor fromSettings() {
+    return new OverheadGovernor(
+        Settings.getBoolean("governor.enabled", true),
+        Settings.getDouble("governor.max.records.per.second", 100000),
+        Settings.getDouble("governor.max.pending.traces", 5000),
+        Settings.getDouble("governor.max.queue.fill", 0.8),
+        Settings.getDouble("governor.max.writer.cpu", 0.2),
+        Settings.getDouble("governor.min.sample.rate", 0.01));
+  }
+
+  void recordReceived() {
+    records.increment();
+  }
+
+  /** @return True if a trace without an upstream sampling decision should be recorded */
+  boolean sample(TraceId traceId) {
+    long hash = (traceId.traceId().toLong() * KNUTH_FACTOR) >>> 11;
+    return hash < threshold;
+  }
+
+  double getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * Adjusts the sample rate from the current load. Called periodically from a single thread.
+   *
+   * @param writerCpuNanos Total CPU time of the writer thread, or -1 if it can't be measured
+   */
+  void update(int pendingTraces, double queueFill, long writerCpuNanos) {
+    long now = System.nanoTime();
+    long elapsed = Math.max(now - lastUpdate, 1);
+    lastUpdate = now;
+
+    double recordsPerSecond = records.sumThenReset() * 1e9 / elapsed;
+    double writerCpu = 0;
+    if (writerCpuNanos >= 0 && lastWriterCpu >= 0) {
+      writerCpu = (double) (writerCpuNanos - lastWriterCpu) / elapsed;
+    }
+    lastWriterCpu = writerCpuNanos;
+
+    if (!enabled) {
+      return;
+    }
+
+    double pressure =
+        Math.max(
+            Math.max(recordsPerSecond / maxRecordsPerSecond, pendingTraces / maxPendingTraces),
+            Math.max(queueFill / maxQueueFill, writerCpu / maxWriterCpu));
+
+    double rate = sampleRate;
+    if (pressure > 1) {
+      rate = Math.max(minSampleRate, rate * Math.min(0.5, 1 / pressure));
+    } else if (pressure < HEADROOM) {
+      rate = Math.min(1.0, Math.max(rate * INCREASE_FACTOR, MIN_INCREASE));
+    }
+
+    if (rate != sampleRate) {
+      sampleRate = rate;
+      threshold = (long) (rate * (1L << 53));
+    }
+  }
+}
@@ -22,13 +22,21 @@ public class PendingTrace {
   private volatile boolean completed = false;
 
   private final String serviceName;
+  private final double sampleRate;
+  private final long startNanos = System.nanoTime();
 
   // TODO implement sampling
-  private int samplingPriority = PrioritySampling.UNSET;
+  private volatile int samplingPriority = PrioritySampling.UNSET;
   private long expiration;
 
   public PendingTrace(String serviceName) {
+    this(serviceName, 1.0);
+  }
+
+  /** @param sampleRate The rate the governor sampled this trace at, 1.0 if it didn't decide */
+  public PendingTrace(String serviceName, double sampleRate) {
     this.serviceName = serviceName;
+    this.sampleRate = sampleRate;
   }
 
   public void addRecord(Record record) {
@@ -39,6 +47,11 @@ public class PendingTrace {
       }
       expiration = System.currentTimeMillis() + TRACE_TIMEOUT;
 
+      if (samplingPriority == PrioritySampling.UNSET && record.traceId().flags().isDebug()) {
+        // Upstream forced the trace to be kept
+        samplingPriority = PrioritySampling.USER_KEEP;
+      }
+
       Span span =
           spans.computeIfAbsent(
               record.traceId().spanId(),
@@ -76,6 +89,13 @@ public class PendingTrace {
     }
   }
 
+  /** @return True if the trace is being flushed because it timed out rather than completed */
+  public boolean isExpired() {
+    synchronized (spans) {
+      return !completed && System.currentTimeMillis() > expiration;
+    }
+  }
+
   public boolean lockWrite() {
     return written.compareAndSet(false, true);
   }
@@ -92,6 +112,20 @@ public class PendingTrace {
     return samplingPriority;
   }
 
+  public double getSampleRate() {
+    return sampleRate;
+  }
+
+  public int getSpanCount() {
+    synchronized (spans) {
+      return spans.size();
+    }
+  }
+
+  long getStartNanos() {
+    return startNanos;
+  }
+
   public List<Span> getSpans() {
     synchronized (spans) {
       return new ArrayList<>(spans.values());
@@ -0,0 +1,50 @@
+package datadog.trace.finagle;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Daemon platform threads, available on every Java version */
+class PlatformThreadBackend implements ExecutionBackend {
+  private static final long UPLOAD_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+  @Override
+  public ScheduledExecutorService newScheduler(String name) {
+    return Executors.newSingleThreadScheduledExecutor(r -> newThread(name, r));
+  }
+
+  @Override
+  public Thread newThread(String name, Runnable task) {
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  @Override
+  public ExecutorService newUploadExecutor(String name, int concurrency) {
+    AtomicInteger count = new AtomicInteger();
+    ThreadFactory threadFactory = r -> newThread(name + "-" + count.incrementAndGet(), r);
+
+    // Idle upload threads exit, so the pool only exists while uploads overlap
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            concurrency,
+            concurrency,
+            UPLOAD_THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  @Override
+  public boolean hasVirtualUploads() {
+    return false;
+  }
+}
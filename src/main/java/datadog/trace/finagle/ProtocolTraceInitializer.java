@@ -0,0 +1,52 @@
+package datadog.trace.finagle;
+
+import com.twitter.finagle.Filter;
+import com.twitter.finagle.ServiceFactory;
+import com.twitter.finagle.Stack;
+import com.twitter.finagle.param.ProtocolLibrary;
+import com.twitter.finagle.param.Tracer;
+import com.twitter.finagle.tracing.TraceInitializerFilter;
+
+/**
+ * Server trace initializer that reads the trace headers with {@link ServerTraceInitializer} on HTTP
+ * stacks. The protocol is only known from the stack params, so the choice is made when the service
+ * is built. Other protocols keep Finagle's initializer, which continues the trace carried by the
+ * protocol itself, or nothing at all if the stack had none.
+ */
+class ProtocolTraceInitializer<Req, Rep>
+    extends Stack.Module2<Tracer, ProtocolLibrary, ServiceFactory<Req, Rep>> {
+  private final boolean replacesDefault;
+
+  /** @param replacesDefault True if the module takes the place of Finagle's initializer */
+  ProtocolTraceInitializer(boolean replacesDefault) {
+    super(Tracer.param(), ProtocolLibrary.param());
+    this.replacesDefault = replacesDefault;
+  }
+
+  @Override
+  public Stack.Role role() {
+    return TraceInitializerFilter.role();
+  }
+
+  @Override
+  public String description() {
+    return "Initializes the trace for incoming requests according to the protocol";
+  }
+
+  @Override
+  public ServiceFactory<Req, Rep> make(
+      Tracer tracer, ProtocolLibrary protocolLibrary, ServiceFactory<Req, Rep> next) {
+    com.twitter.finagle.tracing.Tracer finagleTracer = Tracer.unapply(tracer).get();
+
+    Filter<Req, Rep, Req, Rep> filter;
+    if ("http".equals(protocolLibrary.name())) {
+      filter = ServerTraceInitializer.filter(finagleTracer);
+    } else if (replacesDefault) {
+      filter = new TraceInitializerFilter<>(finagleTracer, true);
+    } else {
+      return next;
+    }
+
+    return filter.andThen(next);
+  }
+}
@@ -0,0 +1,175 @@
+package datadog.trace.finagle;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Turns database queries into low cardinality resource names. Literals are replaced with {@code ?}
+ * and normalized queries are cached, since applications run the same statements over and over.
+ * Each kind of query is limited to a number of distinct resources per window, queries beyond that
+ * share the kind's fallback resource until the window ends and the count starts over.
+ */
+class QueryObfuscator {
+  enum Kind {
+    SQL("", "sql.query"),
+    CASSANDRA("", "cassandra.query"),
+    REDIS("redis.query ", "redis.query");
+
+    private final String prefix;
+    private final String fallback;
+
+    Kind(String prefix, String fallback) {
+      this.prefix = prefix;
+      this.fallback = fallback;
+    }
+  }
+
+  // IN (?, ?, ?) lists vary in length with the arguments
+  private static final Pattern LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+
+  private final boolean enabled;
+  private final int maxResources;
+  private final long windowNanos;
+  private volatile long windowStart = System.nanoTime();
+  private final Map<Kind, Map<String, String>> caches = new EnumMap<>(Kind.class);
+  private final Map<Kind, Set<String>> resources = new EnumMap<>(Kind.class);
+
+  QueryObfuscator(boolean enabled, int cacheSize, int maxResources, long windowMillis) {
+    this.enabled = enabled;
+    this.maxResources = maxResources;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, windowMillis));
+
+    for (Kind kind : Kind.values()) {
+      caches.put(
+          kind,
+          new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+              return size() > cacheSize;
+            }
+          });
+      resources.put(kind, ConcurrentHashMap.newKeySet());
+    }
+  }
+
+  /** @return The resource name for the query, or the kind's fallback once its limit is reached */
+  String resourceName(Kind kind, String query) {
+    String resource = kind.prefix + (enabled ? normalize(kind, query) : query);
+
+    long now = System.nanoTime();
+    if (now - windowStart >= windowNanos) {
+      startWindow(now);
+    }
+
+    Set<String> seen = resources.get(kind);
+    if (!seen.contains(resource)) {
+      if (seen.size() >= maxResources) {
+        return kind.fallback;
+      }
+      seen.add(resource);
+    }
+    return resource;
+  }
+
+  private synchronized void startWindow(long now) {
+    if (now - windowStart >= windowNanos) {
+      for (Set<String> seen : resources.values()) {
+        seen.clear();
+      }
+      windowStart = now;
+    }
+  }
+
+  private String normalize(Kind kind, String query) {
+    Map<String, String> cache = caches.get(kind);
+    synchronized (cache) {
+      String normalized = cache.get(query);
+      if (normalized != null) {
+        return normalized;
+      }
+    }
+
+    String normalized = kind == Kind.REDIS ? obfuscateRedis(query) : obfuscateSql(query);
+    synchronized (cache) {
+      cache.put(query, normalized);
+    }
+    return normalized;
+  }
+
+  /** Keeps the command and hides its arguments, {@code GET user:1} becomes {@code GET ?} */
+  static String obfuscateRedis(String args) {
+    String trimmed = args.trim();
+    int end = 0;
+    while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) {
+      end++;
+    }
+    return end == trimmed.length() ? trimmed : trimmed.substring(0, end) + " ?";
+  }
+
+  /** Replaces quoted strings and numbers with {@code ?}, identifiers are left alone */
+  static String obfuscateSql(String query) {
+    StringBuilder result = new StringBuilder(query.length());
+    int length = query.length();
+    int i = 0;
+    while (i < length) {
+      char c = query.charAt(i);
+      if (c == '\'') {
+        i = skipString(query, i + 1);
+        result.append('?');
+      } else if (Character.isDigit(c) && (i == 0 || !isIdentifierPart(query.charAt(i - 1)))) {
+        i = skipNumber(query, i);
+        result.append('?');
+      } else {
+        result.append(c);
+        i++;
+      }
+    }
+    return LIST.matcher(result).replaceAll("(?)");
+  }
+
+  // Returns the index after the closing quote, '' and \' don't close the string
+  private static int skipString(String query, int i) {
+    int length = query.length();
+    while (i < length) {
+      char c = query.charAt(i);
+      if (c == '\\') {
+        i += 2;
+      } else if (c == '\'') {
+        if (i + 1 < length && query.charAt(i + 1) == '\'') {
+          i += 2;
+        } else {
+          return i + 1;
+        }
+      } else {
+        i++;
+      }
+    }
+    return length;
+  }
+
+  // Decimal, hex (0x..) and exponent forms
+  private static int skipNumber(String query, int i) {
+    int length = query.length();
+    while (i < length) {
+      char c = query.charAt(i);
+      if (Character.isLetterOrDigit(c) || c == '.') {
+        i++;
+      } else if ((c == '+' || c == '-')
+          && (query.charAt(i - 1) == 'e' || query.charAt(i - 1) == 'E')) {
+        i++;
+      } else {
+        break;
+      }
+    }
+    return i;
+  }
+
+  private static boolean isIdentifierPart(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.' || c == '"';
+  }
+}
@@ -0,0 +1,373 @@
+package datadog.trace.finagle;
+
+import com.twitter.finagle.tracing.Annotation;
+import com.twitter.finagle.tracing.Record;
+import com.twitter.finagle.tracing.TraceId;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the records received by the tracers to a file, to be replayed offline by {@link
+ * CaptureReader}. Enabled by setting {@code dd.trace.finagle.capture.path}; the file stops growing
+ * at {@code dd.trace.finagle.capture.max.bytes}.
+ *
+ * <p>Layout: a header (magic, version) followed by the records. Each record is a tag byte for the
+ * annotation kind, with {@link #HAS_DURATION} set when the record has a duration, then the trace
+ * id, the timestamp as a zig-zag varint delta from the previous record, the duration and the
+ * annotation's fields. Trace ids already used by one of the last {@link #TRACE_ID_SLOTS} new ids
+ * are written as a reference to it, and the first {@link #MAX_STRINGS} short strings are written
+ * once and referenced by their index afterwards.
+ */
+final class RecordCapture implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(RecordCapture.class);
+
+  static final int MAGIC = 0x44445243; // DDRC
+  static final int VERSION = 1;
+
+  static final int TRACE_ID_SLOTS = 1024;
+  static final int MAX_STRINGS = 4096;
+  static final int MAX_INTERNED_LENGTH = 256;
+
+  static final int HAS_DURATION = 0x80;
+
+  // Annotation tags
+  static final int CLIENT_SEND = 1;
+  static final int CLIENT_RECV = 2;
+  static final int SERVER_SEND = 3;
+  static final int SERVER_RECV = 4;
+  static final int WIRE_SEND = 5;
+  static final int WIRE_RECV = 6;
+  static final int CLIENT_SEND_FRAGMENT = 7;
+  static final int CLIENT_RECV_FRAGMENT = 8;
+  static final int SERVER_SEND_FRAGMENT = 9;
+  static final int SERVER_RECV_FRAGMENT = 10;
+  static final int WIRE_RECV_ERROR = 11;
+  static final int CLIENT_RECV_ERROR = 12;
+  static final int SERVER_SEND_ERROR = 13;
+  static final int MESSAGE = 14;
+  static final int SERVICE_NAME = 15;
+  static final int RPC = 16;
+  static final int LOCAL_ADDR = 17;
+  static final int CLIENT_ADDR = 18;
+  static final int SERVER_ADDR = 19;
+  static final int BINARY_ANNOTATION = 20;
+
+  // Binary annotation value types, values of other types are written as strings
+  static final int BOOLEAN = 1;
+  static final int INT = 2;
+  static final int LONG = 3;
+  static final int DOUBLE = 4;
+  static final int STRING = 5;
+  static final int BYTES = 6;
+
+  // Trace id fields, the span id is always written
+  static final int TRACE_ID = 1;
+  static final int PARENT_ID = 2;
+  static final int SAMPLED_KNOWN = 4;
+  static final int SAMPLED = 8;
+  static final int TRACE_ID_HIGH = 16;
+  static final int TERMINAL = 32;
+
+  private static final Map<Class<?>, Integer> TAGS = new HashMap<>();
+
+  static {
+    TAGS.put(Annotation.ClientSend$.MODULE$.getClass(), CLIENT_SEND);
+    TAGS.put(Annotation.ClientRecv$.MODULE$.getClass(), CLIENT_RECV);
+    TAGS.put(Annotation.ServerSend$.MODULE$.getClass(), SERVER_SEND);
+    TAGS.put(Annotation.ServerRecv$.MODULE$.getClass(), SERVER_RECV);
+    TAGS.put(Annotation.WireSend$.MODULE$.getClass(), WIRE_SEND);
+    TAGS.put(Annotation.WireRecv$.MODULE$.getClass(), WIRE_RECV);
+    TAGS.put(Annotation.ClientSendFragment$.MODULE$.getClass(), CLIENT_SEND_FRAGMENT);
+    TAGS.put(Annotation.ClientRecvFragment$.MODULE$.getClass(), CLIENT_RECV_FRAGMENT);
+    TAGS.put(Annotation.ServerSendFragment$.MODULE$.getClass(), SERVER_SEND_FRAGMENT);
+    TAGS.put(Annotation.ServerRecvFragment$.MODULE$.getClass(), SERVER_RECV_FRAGMENT);
+    TAGS.put(Annotation.WireRecvError.class, WIRE_RECV_ERROR);
+    TAGS.put(Annotation.ClientRecvError.class, CLIENT_RECV_ERROR);
+    TAGS.put(Annotation.ServerSendError.class, SERVER_SEND_ERROR);
+    TAGS.put(Annotation.Message.class, MESSAGE);
+    TAGS.put(Annotation.ServiceName.class, SERVICE_NAME);
+    TAGS.put(Annotation.Rpc.class, RPC);
+    TAGS.put(Annotation.LocalAddr.class, LOCAL_ADDR);
+    TAGS.put(Annotation.ClientAddr.class, CLIENT_ADDR);
+    TAGS.put(Annotation.ServerAddr.class, SERVER_ADDR);
+    TAGS.put(Annotation.BinaryAnnotation.class, BINARY_ANNOTATION);
+  }
+
+  private static final RecordCapture INSTANCE = open();
+
+  private final File path;
+  private final DataOutputStream out;
+  private final long maxBytes;
+
+  // Guarded by this
+  private boolean full;
+  // TraceId.equals ignores the sampling decision, flags and terminal, see sameTraceId
+  private final Map<TraceId, Long> traceIds = new HashMap<>();
+  private final TraceId[] traceIdSlots = new TraceId[TRACE_ID_SLOTS];
+  private long nextTraceIdIndex;
+  private final Map<String, Integer> strings = new HashMap<>();
+  private long lastNanos;
+
+  RecordCapture(File path, long maxBytes) throws IOException {
+    this.path = path;
+    this.maxBytes = maxBytes;
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 64 * 1024));
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+  }
+
+  /** @return The capture shared by the tracers of the process, null unless capture is enabled */
+  static RecordCapture get() {
+    return INSTANCE;
+  }
+
+  private static RecordCapture open() {
+    String path = Settings.getString("capture.path", null);
+    if (path == null || path.isEmpty()) {
+      return null;
+    }
+
+    try {
+      RecordCapture capture =
+          new RecordCapture(new File(path), Settings.getLong("capture.max.bytes", 256L << 20));
+      Runtime.getRuntime().addShutdownHook(new Thread(capture::close, "dd-trace-capture-close"));
+      log.info("Capturing trace records to {}", path);
+      return capture;
+    } catch (final IOException e) {
+      log.warn("Unable to open record capture {}. Capture disabled", path, e);
+      return null;
+    }
+  }
+
+  synchronized void write(Record record) {
+    if (full) {
+      return;
+    }
+
+    try {
+      Annotation annotation = record.annotation();
+      Integer tag = TAGS.get(annotation.getClass());
+      if (tag == null) {
+        // Annotation is sealed, this is only reached by kinds added in later Finagle versions
+        tag = MESSAGE;
+        annotation = new Annotation.Message(annotation.toString());
+      }
+
+      boolean hasDuration = record.duration().isDefined();
+      out.writeByte(hasDuration ? tag | HAS_DURATION : tag);
+      writeTraceId(record.traceId());
+      long nanos = record.timestamp().inNanoseconds();
+      writeSignedVarLong(nanos - lastNanos);
+      lastNanos = nanos;
+      if (hasDuration) {
+        writeVarLong(record.duration().get().inNanoseconds());
+      }
+      writeAnnotation(tag, annotation);
+
+      if (out.size() >= maxBytes) {
+        full = true;
+        out.flush();
+        log.info("Record capture {} reached {} bytes, capture stopped", path, out.size());
+      }
+    } catch (final IOException e) {
+      full = true;
+      log.warn("Error while writing record capture {}. Capture stopped", path, e);
+    }
+  }
+
+  private void writeTraceId(TraceId traceId) throws IOException {
+    Long index = traceIds.get(traceId);
+    if (index != null && sameTraceId(traceIdSlots[(int) (index % TRACE_ID_SLOTS)], traceId)) {
+      writeVarLong(nextTraceIdIndex - index);
+      return;
+    }
+
+    int slot = (int) (nextTraceIdIndex % TRACE_ID_SLOTS);
+    if (traceIdSlots[slot] != null) {
+      // Unless a later variant of the id took its place in the map
+      traceIds.remove(traceIdSlots[slot], nextTraceIdIndex - TRACE_ID_SLOTS);
+    }
+    traceIdSlots[slot] = traceId;
+    traceIds.put(traceId, nextTraceIdIndex++);
+
+    // 0 introduces a new trace id
+    writeVarLong(0);
+    int fields = 0;
+    if (traceId._traceId().isDefined()) {
+      fields |= TRACE_ID;
+    }
+    if (traceId._parentId().isDefined()) {
+      fields |= PARENT_ID;
+    }
+    if (traceId._sampled().isDefined()) {
+      fields |= SAMPLED_KNOWN;
+      if ((Boolean) traceId._sampled().get()) {
+        fields |= SAMPLED;
+      }
+    }
+    if (traceId.traceIdHigh().isDefined()) {
+      fields |= TRACE_ID_HIGH;
+    }
+    if (traceId.terminal()) {
+      fields |= TERMINAL;
+    }
+
+    out.writeByte(fields);
+    out.writeLong(traceId.spanId().toLong());
+    if ((fields & TRACE_ID) != 0) {
+      out.writeLong(traceId._traceId().get().toLong());
+    }
+    if ((fields & PARENT_ID) != 0) {
+      out.writeLong(traceId._parentId().get().toLong());
+    }
+    if ((fields & TRACE_ID_HIGH) != 0) {
+      out.writeLong(traceId.traceIdHigh().get().toLong());
+    }
+    writeVarLong(traceId.flags().flags());
+  }
+
+  /** @return True if every field of the ids is the same, unlike {@link TraceId#equals} */
+  private static boolean sameTraceId(TraceId a, TraceId b) {
+    return a == b
+        || (a.spanId().equals(b.spanId())
+            && a._traceId().equals(b._traceId())
+            && a._parentId().equals(b._parentId())
+            && a.traceIdHigh().equals(b.traceIdHigh())
+            && a._sampled().equals(b._sampled())
+            && a.flags().equals(b.flags())
+            && a.terminal() == b.terminal());
+  }
+
+  private void writeAnnotation(int tag, Annotation annotation) throws IOException {
+    switch (tag) {
+      case WIRE_RECV_ERROR:
+        writeString(((Annotation.WireRecvError) annotation).error());
+        break;
+      case CLIENT_RECV_ERROR:
+        writeString(((Annotation.ClientRecvError) annotation).error());
+        break;
+      case SERVER_SEND_ERROR:
+        writeString(((Annotation.ServerSendError) annotation).error());
+        break;
+      case MESSAGE:
+        writeString(((Annotation.Message) annotation).content());
+        break;
+      case SERVICE_NAME:
+        writeString(((Annotation.ServiceName) annotation).service());
+        break;
+      case RPC:
+        writeString(((Annotation.Rpc) annotation).name());
+        break;
+      case LOCAL_ADDR:
+        writeAddress(((Annotation.LocalAddr) annotation).ia());
+        break;
+      case CLIENT_ADDR:
+        writeAddress(((Annotation.ClientAddr) annotation).ia());
+        break;
+      case SERVER_ADDR:
+        writeAddress(((Annotation.ServerAddr) annotation).ia());
+        break;
+      case BINARY_ANNOTATION:
+        Annotation.BinaryAnnotation binaryAnnotation = (Annotation.BinaryAnnotation) annotation;
+        writeString(binaryAnnotation.key());
+        writeValue(binaryAnnotation.value());
+        break;
+      default:
+        // The other kinds have no fields
+    }
+  }
+
+  private void writeValue(Object value) throws IOException {
+    if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(INT);
+      writeSignedVarLong((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+      writeSignedVarLong((Long) value);
+    } else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof byte[]) {
+      byte[] bytes = (byte[]) value;
+      out.writeByte(BYTES);
+      writeVarLong(bytes.length);
+      out.write(bytes);
+    } else {
+      out.writeByte(STRING);
+      writeString(String.valueOf(value));
+    }
+  }
+
+  private void writeAddress(InetSocketAddress address) throws IOException {
+    if (address.isUnresolved()) {
+      writeVarLong(0);
+      writeString(address.getHostString());
+    } else {
+      byte[] bytes = address.getAddress().getAddress();
+      writeVarLong(bytes.length);
+      out.write(bytes);
+    }
+    writeVarLong(address.getPort());
+  }
+
+  private void writeString(String value) throws IOException {
+    Integer index = strings.get(value);
+    if (index != null) {
+      writeVarLong(index + 1);
+      return;
+    }
+
+    // 0 introduces a string written in full, the reader interns it under the same conditions
+    writeVarLong(0);
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(bytes.length);
+    out.write(bytes);
+    if (strings.size() < MAX_STRINGS && bytes.length <= MAX_INTERNED_LENGTH) {
+      strings.put(value, strings.size());
+    }
+  }
+
+  private void writeSignedVarLong(long value) throws IOException {
+    writeVarLong((value << 1) ^ (value >> 63));
+  }
+
+  private void writeVarLong(long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  /** Writes the buffered records, so the file can be read while capture goes on */
+  synchronized void flush() {
+    try {
+      out.flush();
+    } catch (final IOException e) {
+      log.debug("Error while flushing record capture {}", path, e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    full = true;
+    try {
+      out.close();
+    } catch (final IOException e) {
+      log.debug("Error while closing record capture {}", path, e);
+    }
+  }
+}
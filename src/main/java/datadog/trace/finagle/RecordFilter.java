@@ -0,0 +1,96 @@
+package datadog.trace.finagle;
+
+import com.twitter.finagle.tracing.Annotation;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides which records reach the tracer. Annotation types are matched by their Finagle name
+ * ({@code WireSend}, {@code Message}, ...) and binary annotations additionally by key. An empty
+ * allowlist allows everything; the denylist always wins. The client and server send/receive
+ * annotations are always accepted since spans can't complete without them.
+ */
+final class RecordFilter {
+  static final String DEFAULT_DENIED_KEYS = "jvm/gc_count,jvm/gc_ms";
+
+  private static final Set<Class<?>> LIFECYCLE =
+      new HashSet<>(
+          Arrays.asList(
+              Annotation.ClientSend$.MODULE$.getClass(),
+              Annotation.ClientRecv$.MODULE$.getClass(),
+              Annotation.ServerSend$.MODULE$.getClass(),
+              Annotation.ServerRecv$.MODULE$.getClass()));
+
+  private final Set<String> allowedTypes;
+  private final Set<String> deniedTypes;
+  private final Set<String> allowedKeys;
+  private final Set<String> deniedKeys;
+
+  // Annotation types are a small closed set, so the decision is cached per class
+  private final ClassValue<Boolean> typeAccepted =
+      new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+          if (LIFECYCLE.contains(type)) {
+            return true;
+          }
+          String name = typeName(type);
+          return (allowedTypes.isEmpty() || allowedTypes.contains(name))
+              && !deniedTypes.contains(name);
+        }
+      };
+
+  RecordFilter(
+      Set<String> allowedTypes,
+      Set<String> deniedTypes,
+      Set<String> allowedKeys,
+      Set<String> deniedKeys) {
+    this.allowedTypes = allowedTypes;
+    this.deniedTypes = deniedTypes;
+    this.allowedKeys = allowedKeys;
+    this.deniedKeys = deniedKeys;
+  }
+
+  static RecordFilter fromSettings() {
+    return new RecordFilter(
+        parseList(Settings.getString("record.annotations.allow", "")),
+        parseList(Settings.getString("record.annotations.deny", "")),
+        parseList(Settings.getString("record.keys.allow", "")),
+        parseList(Settings.getString("record.keys.deny", DEFAULT_DENIED_KEYS)));
+  }
+
+  boolean accept(Annotation annotation) {
+    if (!typeAccepted.get(annotation.getClass())) {
+      return false;
+    }
+
+    if (annotation instanceof Annotation.BinaryAnnotation) {
+      String key = ((Annotation.BinaryAnnotation) annotation).key();
+      return (allowedKeys.isEmpty() || allowedKeys.contains(key)) && !deniedKeys.contains(key);
+    }
+    return true;
+  }
+
+  // Annotation$WireSend$ -> WireSend
+  private static String typeName(Class<?> type) {
+    String name = type.getSimpleName();
+    return name.endsWith("$") ? name.substring(0, name.length() - 1) : name;
+  }
+
+  private static Set<String> parseList(String value) {
+    if (value == null || value.trim().isEmpty()) {
+      return Collections.emptySet();
+    }
+
+    Set<String> values = new HashSet<>();
+    for (String item : value.split(",")) {
+      String trimmed = item.trim();
+      if (!trimmed.isEmpty()) {
+        values.add(trimmed);
+      }
+    }
+    return values;
+  }
+}
@@ -3,17 +3,14 @@ package datadog.trace.finagle;
 import com.twitter.finagle.Filter;
 import com.twitter.finagle.ServiceFactory;
 import com.twitter.finagle.Stack;
-import com.twitter.finagle.http.HttpTracing.Header$;
+import com.twitter.finagle.http.HeaderMap;
 import com.twitter.finagle.http.Request;
 import com.twitter.finagle.http.TraceInfo;
 import com.twitter.finagle.param.Tracer;
 import com.twitter.finagle.tracing.Flags;
-import com.twitter.finagle.tracing.SpanId;
 import com.twitter.finagle.tracing.Trace;
 import com.twitter.finagle.tracing.TraceId;
-import com.twitter.finagle.tracing.TraceId128;
 import com.twitter.finagle.tracing.TraceInitializerFilter;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Supplier;
 import scala.Option;
 
@@ -36,71 +33,66 @@ public class ServerTraceInitializer<Req extends Request, Rep>
 
   @Override
   public ServiceFactory<Req, Rep> make(Tracer tracer, ServiceFactory<Req, Rep> next) {
-
-    Filter<Req, Rep, Req, Rep> filter =
-        Filter.mk(
-            (req, service) ->
-                Trace.letTracer(
-                    Tracer.unapply(tracer).get(),
-                    () -> letTraceIdFromRequestHeaders(req, () -> service.apply(req))));
-
+    Filter<Req, Rep, Req, Rep> filter = filter(Tracer.unapply(tracer).get());
     return filter.andThen(next);
   }
 
+  /** The server filter for HTTP stacks, requests must be a {@link Request} */
+  static <Req, Rep> Filter<Req, Rep, Req, Rep> filter(
+      com.twitter.finagle.tracing.Tracer tracer) {
+    return Filter.mk(
+        (req, service) ->
+            Trace.letTracer(
+                tracer,
+                () ->
+                    letTraceIdFromRequestHeaders(
+                        tracer, (Request) req, () -> service.apply(req))));
+  }
+
   // This is a reimplementation of com.twitter.finagle.http.TraceInfo that creates a new span
   // id for the server span
-  private <R> R letTraceIdFromRequestHeaders(Request request, Supplier<R> f) {
-    TraceInfo.convertB3Trace(request);
-
-    TraceId traceId = null;
-
-    if (Header$.MODULE$.hasAllRequired(request.headerMap())) {
-      // Assign spanId to parent span id!!
-      Option<SpanId> parentSpanId =
-          SpanId.fromString((String) request.headerMap().apply(Header$.MODULE$.SpanId()));
-
-      if (parentSpanId.isDefined()) {
-        TraceId128 trace128Bit =
-            TraceId128.apply((String) request.headerMap().apply(Header$.MODULE$.TraceId()));
-
-        String maybeSampled = request.headerMap().getOrNull(Header$.MODULE$.Sampled());
-        boolean sampled = "1".equals(maybeSampled) || Boolean.parseBoolean(maybeSampled);
-
-        Flags flags = TraceInfo.getFlags(request);
+  private static <R> R letTraceIdFromRequestHeaders(
+      com.twitter.finagle.tracing.Tracer tracer, Request request, Supplier<R> f) {
+    HeaderMap headers = request.headerMap();
+    TraceId traceId = TraceHeaders.extract(headers);
+
+    if (traceId == null) {
+      String flags = headers.getOrNull(TraceHeaders.B3_FLAGS);
+      traceId =
+          flags != null
+              ? traceIdWithFlag(Trace.nextId(), TraceHeaders.parseFlags(flags))
+              : Trace.nextId();
+    }
 
-        traceId =
-            TraceId.apply(
-                trace128Bit.low(),
-                parentSpanId,
-                newSpanId(),
-                Option.apply(sampled),
-                flags,
-                trace128Bit.high(),
-                false);
-      } else {
-        traceId = Trace.nextId();
+    // Trace.letId doesn't ask the tracer, unlike Trace.letTracerAndId.  Without a decision here
+    // the server span would always be recorded and only its children would be sampled
+    if (traceId._sampled().isEmpty()) {
+      Option<Object> sampled = tracer.sampleTrace(traceId);
+      if (sampled.isDefined()) {
+        traceId = traceIdWithSampled(traceId, sampled);
       }
-
-    } else if (request.headerMap().contains(Header$.MODULE$.Flags())) {
-      traceId = traceIdWithFlag(Trace.nextId(), TraceInfo.getFlags(request));
-    } else {
-      traceId = Trace.nextId();
     }
 
-    Header$.MODULE$.All().foreach((h) -> request.headerMap().remove(h));
+    TraceHeaders.remove(headers);
 
-    if (traceId != null) {
-      return Trace.letId(
-          traceId,
-          false,
-          () -> {
-            TraceInfo.traceRpc(request);
-            return f.get();
-          });
-    } else {
-      TraceInfo.traceRpc(request);
-      return f.get();
-    }
+    return Trace.letId(
+        traceId,
+        false,
+        () -> {
+          TraceInfo.traceRpc(request);
+          return f.get();
+        });
+  }
+
+  private static TraceId traceIdWithSampled(TraceId orig, Option<Object> sampled) {
+    return new TraceId(
+        orig._traceId(),
+        orig._parentId(),
+        orig.spanId(),
+        sampled,
+        orig.flags(),
+        orig.traceIdHigh(),
+        orig.terminal());
   }
 
   private static TraceId traceIdWithFlag(TraceId orig, Flags flags) {
@@ -113,9 +105,4 @@ public class ServerTraceInitializer<Req extends Request, Rep>
         orig.traceIdHigh(),
         orig.terminal());
   }
-
-  private static SpanId newSpanId() {
-    long nextId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
-    return SpanId.apply(nextId);
-  }
 }
@@ -0,0 +1,75 @@
+package datadog.trace.finagle;
+
+import datadog.trace.api.Config;
+import java.util.Locale;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Typed accessors for reporter specific settings. Names follow the {@link Config} conventions, so
+ * {@code trace.finagle.agent.retries} is read from the {@code dd.trace.finagle.agent.retries}
+ * system property or the {@code DD_TRACE_FINAGLE_AGENT_RETRIES} environment variable.
+ */
+final class Settings {
+  private static final Logger log = LoggerFactory.getLogger(Settings.class);
+
+  static final String PREFIX = "trace.finagle.";
+
+  private Settings() {}
+
+  static String getString(String name, String defaultValue) {
+    String property = "dd." + PREFIX + name;
+    String value = System.getProperty(property);
+    if (value == null) {
+      value = System.getenv(property.replace('.', '_').replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+    return value != null ? value : defaultValue;
+  }
+
+  static boolean getBoolean(String name, boolean defaultValue) {
+    String value = getString(name, null);
+    return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+  }
+
+  static int getInt(String name, int defaultValue) {
+    String value = getString(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      log.warn("Invalid value for {}{}: {}", PREFIX, name, value);
+      return defaultValue;
+    }
+  }
+
+  static double getDouble(String name, double defaultValue) {
+    String value = getString(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      log.warn("Invalid value for {}{}: {}", PREFIX, name, value);
+      return defaultValue;
+    }
+  }
+
+  static long getLong(String name, long defaultValue) {
+    String value = getString(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      log.warn("Invalid value for {}{}: {}", PREFIX, name, value);
+      return defaultValue;
+    }
+  }
+}
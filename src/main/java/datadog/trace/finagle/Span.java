@@ -10,6 +10,7 @@ import com.twitter.finagle.tracing.Record;
 import datadog.trace.api.Config;
 import datadog.trace.api.DDSpanTypes;
 import datadog.trace.api.DDTags;
+import datadog.trace.api.sampling.PrioritySampling;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.math.BigInteger;
@@ -19,6 +20,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +33,20 @@ public class Span {
   private static final Pattern PATH_MIXED_ALPHANUMERICS =
       Pattern.compile("(?<=/)(?![vV]\\d{1,2}/)(?:[^\\/\\d\\?]*[\\d]+[^\\/\\?]*)");
 
+  // Shared by all spans, resolving peer host names doesn't depend on the tracer
+  private static final HostnameCache HOSTNAMES =
+      new HostnameCache(
+          Settings.getInt("hostname.cache.size", 1024),
+          Settings.getLong("hostname.cache.ttl.ms", TimeUnit.MINUTES.toMillis(5)));
+
+  // Resource names are computed when spans are serialized, on the writer thread
+  private static final QueryObfuscator QUERIES =
+      new QueryObfuscator(
+          Settings.getBoolean("obfuscation.enabled", true),
+          Settings.getInt("obfuscation.cache.size", 1024),
+          Settings.getInt("resource.cardinality.max", 500),
+          Settings.getLong("resource.cardinality.window.ms", 600000));
+
   public enum Kind {
     SERVER,
     CLIENT,
@@ -57,6 +73,13 @@ public class Span {
   private InetSocketAddress serverAddress;
   private InetSocketAddress messagingAddress;
 
+  // Wire level timestamps and fragment counts, kept as primitives and only turned into metrics
+  // when the span is serialized
+  private long wireSendTime;
+  private long wireRecvTime;
+  private int sentFragments;
+  private int receivedFragments;
+
   public Span(
       PendingTrace trace,
       BigInteger traceId,
@@ -72,6 +95,111 @@ public class Span {
     this.localRoot = localRoot;
   }
 
+  /** Updates a span from one kind of annotation */
+  private interface AnnotationHandler {
+    void handle(Span span, Record record);
+  }
+
+  // Annotations are Scala case classes and objects, so the exact class identifies the kind
+  private static final Map<Class<?>, AnnotationHandler> HANDLERS = new HashMap<>();
+
+  static {
+    HANDLERS.put(
+        Annotation.ClientSend$.MODULE$.getClass(), (span, record) -> span.kind = Kind.CLIENT);
+    HANDLERS.put(
+        Annotation.ClientRecv$.MODULE$.getClass(),
+        (span, record) -> {
+          span.kind = Kind.CLIENT;
+          span.end(record);
+        });
+    HANDLERS.put(Annotation.ServerRecv$.MODULE$.getClass(), (span, record) -> span.setServer());
+    HANDLERS.put(
+        Annotation.ServerSend$.MODULE$.getClass(),
+        (span, record) -> {
+          span.setServer();
+          span.end(record);
+        });
+    HANDLERS.put(
+        Annotation.Rpc.class,
+        (span, record) -> {
+          span.name = ((Annotation.Rpc) record.annotation()).name();
+          span.type = DDSpanTypes.RPC;
+        });
+    HANDLERS.put(
+        Annotation.ServiceName.class,
+        (span, record) ->
+            span.assignedServiceName = ((Annotation.ServiceName) record.annotation()).service());
+    HANDLERS.put(
+        Annotation.WireRecvError.class,
+        (span, record) ->
+            span.tags.put(
+                DDTags.ERROR_MSG,
+                "Wire Receive Error: " + ((Annotation.WireRecvError) record.annotation()).error()));
+    HANDLERS.put(
+        Annotation.ClientRecvError.class,
+        (span, record) ->
+            span.tags.put(
+                DDTags.ERROR_MSG,
+                "Client Receive Error: "
+                    + ((Annotation.ClientRecvError) record.annotation()).error()));
+    HANDLERS.put(
+        Annotation.ServerSendError.class,
+        (span, record) ->
+            span.tags.put(
+                DDTags.ERROR_MSG,
+                "Server Send  Error: "
+                    + ((Annotation.ServerSendError) record.annotation()).error()));
+    HANDLERS.put(
+        Annotation.LocalAddr.class,
+        (span, record) -> span.localAddress = ((Annotation.LocalAddr) record.annotation()).ia());
+    HANDLERS.put(
+        Annotation.ClientAddr.class,
+        (span, record) -> span.clientAddress = ((Annotation.ClientAddr) record.annotation()).ia());
+    HANDLERS.put(
+        Annotation.ServerAddr.class,
+        (span, record) -> span.serverAddress = ((Annotation.ServerAddr) record.annotation()).ia());
+    HANDLERS.put(
+        Annotation.BinaryAnnotation.class,
+        (span, record) ->
+            span.addBinaryAnnotation((Annotation.BinaryAnnotation) record.annotation()));
+    HANDLERS.put(
+        Annotation.Message.class,
+        (span, record) -> {
+          // Timed out requests never see ServerSend or ClientRecv
+          String content = ((Annotation.Message) record.annotation()).content();
+          if (TimeoutFilter.TimeoutAnnotation().equals(content)) {
+            span.end(record);
+          }
+        });
+
+    HANDLERS.put(
+        Annotation.WireSend$.MODULE$.getClass(),
+        (span, record) -> {
+          if (span.wireSendTime == 0) {
+            span.wireSendTime = record.timestamp().inNanoseconds();
+          }
+        });
+    HANDLERS.put(
+        Annotation.WireRecv$.MODULE$.getClass(),
+        (span, record) -> {
+          if (span.wireRecvTime == 0) {
+            span.wireRecvTime = record.timestamp().inNanoseconds();
+          }
+        });
+    HANDLERS.put(
+        Annotation.ClientSendFragment$.MODULE$.getClass(), (span, record) -> span.sentFragments++);
+    HANDLERS.put(
+        Annotation.ServerSendFragment$.MODULE$.getClass(), (span, record) -> span.sentFragments++);
+    HANDLERS.put(
+        Annotation.ClientRecvFragment$.MODULE$.getClass(),
+        (span, record) -> span.receivedFragments++);
+    HANDLERS.put(
+        Annotation.ServerRecvFragment$.MODULE$.getClass(),
+        (span, record) -> span.receivedFragments++);
+
+    // TODO MS and MR Kind.Producer, Kind.Consumer
+  }
+
   public void addRecord(Record record) {
     if (isComplete()) {
       log.warn("Record added to completed span: {}", record);
@@ -81,90 +209,42 @@ public class Span {
       startTime = record.timestamp().inNanoseconds();
     }
 
-    Annotation annotation = record.annotation();
-    if (Annotation.ClientSend$.MODULE$.equals(annotation)
-        || Annotation.ClientRecv$.MODULE$.equals(annotation)) {
-      kind = Kind.CLIENT;
-    } else if (Annotation.ServerRecv$.MODULE$.equals(annotation)
-        || Annotation.ServerSend$.MODULE$.equals(annotation)) {
-      kind = Kind.SERVER;
-      tags.put(Config.LANGUAGE_TAG_KEY, Config.LANGUAGE_TAG_VALUE);
-    } else if (annotation instanceof Annotation.Rpc) {
-      name = ((Annotation.Rpc) annotation).name();
-      type = DDSpanTypes.RPC;
-    } else if (annotation instanceof Annotation.ServiceName) {
-      assignedServiceName = ((Annotation.ServiceName) annotation).service();
-    } else if (annotation instanceof Annotation.WireRecvError) {
-      String error = ((Annotation.WireRecvError) annotation).error();
-      tags.put(DDTags.ERROR_MSG, "Wire Receive Error: " + error);
-    } else if (annotation instanceof Annotation.ClientRecvError) {
-      String error = ((Annotation.ClientRecvError) annotation).error();
-      tags.put(DDTags.ERROR_MSG, "Client Receive Error: " + error);
-    } else if (annotation instanceof Annotation.ServerSendError) {
-      String error = ((Annotation.ServerSendError) annotation).error();
-      tags.put(DDTags.ERROR_MSG, "Server Send  Error: " + error);
-    } else if (annotation instanceof Annotation.LocalAddr) {
-      localAddress = ((Annotation.LocalAddr) annotation).ia();
-    } else if (annotation instanceof Annotation.ClientAddr) {
-      clientAddress = ((Annotation.ClientAddr) annotation).ia();
-    } else if (annotation instanceof Annotation.ServerAddr) {
-      serverAddress = ((Annotation.ServerAddr) annotation).ia();
-    } else if (annotation instanceof Annotation.BinaryAnnotation) {
-      Object value = ((Annotation.BinaryAnnotation) annotation).value();
-      if (value instanceof Number || value instanceof Boolean || value instanceof String) {
-        tags.put(
-            convertTagName(((Annotation.BinaryAnnotation) annotation).key()), value.toString());
-      } else if (value instanceof Status) {
-        tags.put(
-            convertTagName(((Annotation.BinaryAnnotation) annotation).key()),
-            String.valueOf(((Status) value).code()));
-      } else if (value instanceof Throwable) {
-        Throwable t = (Throwable) value;
-        tags.put(
-            convertTagName(((Annotation.BinaryAnnotation) annotation).key()),
-            t.getClass().getName());
-        tags.put(DDTags.ERROR_MSG, t.getMessage());
-        tags.put(DDTags.ERROR_TYPE, t.getClass().getName());
-        final StringWriter errorString = new StringWriter();
-        t.printStackTrace(new PrintWriter(errorString));
-        tags.put(DDTags.ERROR_STACK, errorString.toString());
-      }
+    AnnotationHandler handler = HANDLERS.get(record.annotation().getClass());
+    if (handler != null) {
+      handler.handle(this, record);
     }
+  }
 
-    // Finishing spans
-    // There's usually not always WireSend, BinaryAnnotation(jvm/gc_count),
-    // BinaryAnnotation(jvm/gc_ms), and BinaryAnnotation(srv/response_payload_bytes) AFTER
-    // ServerSend.
-    //
-    // However, its not always the case especially in error conditions.  End the span at ServerSend
-    if (Annotation.ServerSend$.MODULE$.equals(annotation)
-        || Annotation.ClientRecv$.MODULE$.equals(annotation)
-        || (annotation instanceof Annotation.Message
-            && TimeoutFilter.TimeoutAnnotation()
-                .equals(((Annotation.Message) annotation).content()))) {
+  private void setServer() {
+    kind = Kind.SERVER;
+    tags.put(Config.LANGUAGE_TAG_KEY, Config.LANGUAGE_TAG_VALUE);
+  }
 
-      endTime = record.timestamp().inNanoseconds();
-    }
+  // Finishing spans
+  // There's usually not always WireSend, BinaryAnnotation(jvm/gc_count),
+  // BinaryAnnotation(jvm/gc_ms), and BinaryAnnotation(srv/response_payload_bytes) AFTER
+  // ServerSend.
+  //
+  // However, its not always the case especially in error conditions.  End the span at ServerSend
+  private void end(Record record) {
+    endTime = record.timestamp().inNanoseconds();
+  }
 
-    // TODO MS and MR Kind.Producer, Kind.Consumer
-    /*
-        if (Annotation.WireSend$.MODULE$.equals(annotation)) {
-          span.addAnnotation(record.timestamp(), "ws");
-        } else if (Annotation.WireRecv$.MODULE$.equals(annotation)) {
-          span.addAnnotation(record.timestamp(), "wr");
-        }  else if (Annotation.ClientSendFragment$.MODULE$.equals(annotation)) {
-          span.addAnnotation(record.timestamp(), "csf");
-        } else if (Annotation.ClientRecvFragment$.MODULE$.equals(annotation)) {
-          span.addAnnotation(record.timestamp(), "crf");
-        } else if (Annotation.ServerSendFragment$.MODULE$.equals(annotation)) {
-          span.addAnnotation(record.timestamp(), "ssf");
-        } else if (Annotation.ServerRecvFragment$.MODULE$.equals(annotation)) {
-          span.addAnnotation(record.timestamp(), "srf");
-        } else if (annotation instanceof Annotation.Message) {
-          String value = ((Annotation.Message) annotation).content();
-          span.addAnnotation(record.timestamp(), value);
-        }
-    */
+  private void addBinaryAnnotation(Annotation.BinaryAnnotation annotation) {
+    Object value = annotation.value();
+    if (value instanceof Number || value instanceof Boolean || value instanceof String) {
+      tags.put(convertTagName(annotation.key()), value.toString());
+    } else if (value instanceof Status) {
+      tags.put(convertTagName(annotation.key()), String.valueOf(((Status) value).code()));
+    } else if (value instanceof Throwable) {
+      Throwable t = (Throwable) value;
+      tags.put(convertTagName(annotation.key()), t.getClass().getName());
+      tags.put(DDTags.ERROR_MSG, t.getMessage());
+      tags.put(DDTags.ERROR_TYPE, t.getClass().getName());
+      final StringWriter errorString = new StringWriter();
+      t.printStackTrace(new PrintWriter(errorString));
+      tags.put(DDTags.ERROR_STACK, errorString.toString());
+    }
   }
 
   private static String convertTagName(String original) {
@@ -227,19 +307,19 @@ public class Span {
   @JsonGetter("resource")
   public String getResourceName() {
     if (tags.containsKey("sql.query")) {
-      return tags.get("sql.query");
+      return QUERIES.resourceName(QueryObfuscator.Kind.SQL, tags.get("sql.query"));
     }
 
     if (tags.containsKey("cassandra.query")) {
-      return tags.get("cassandra.query");
+      return QUERIES.resourceName(QueryObfuscator.Kind.CASSANDRA, tags.get("cassandra.query"));
     }
 
     if (tags.containsKey("db.statement")) {
-      return tags.get("db.statement");
+      return QUERIES.resourceName(QueryObfuscator.Kind.SQL, tags.get("db.statement"));
     }
 
     if (tags.containsKey("redis.args")) {
-      return "redis.query " + tags.get("redis.args");
+      return QUERIES.resourceName(QueryObfuscator.Kind.REDIS, tags.get("redis.args"));
     }
 
     if (tags.containsKey("http.url")) {
@@ -264,7 +344,8 @@ public class Span {
       return "cassandra.query";
     }
     if (tags.containsKey("db.statement")) {
-      return tags.get("db.statement");
+      // The statement itself is the resource name, once obfuscated
+      return "sql.query";
     }
     if (tags.containsKey("redis.args")) {
       return "redis.query";
@@ -318,16 +399,50 @@ public class Span {
   @JsonGetter
   public Map<String, Number> getMetrics() {
     if (localRoot) {
-      metrics.put("_sampling_priority_v1", 1);
+      Integer samplingPriority = trace.getSamplingPriority();
+      metrics.put(
+          "_sampling_priority_v1",
+          samplingPriority == null ? PrioritySampling.SAMPLER_KEEP : samplingPriority);
+
+      // Lets the agent scale its stats back up while the governor drops traces, only set on
+      // traces the governor sampled
+      if (trace.getSampleRate() < 1.0) {
+        metrics.put("_sample_rate", trace.getSampleRate());
+      }
     }
 
     if (BigInteger.ZERO.equals(parentId)) {
       metrics.put("_dd.agent_psr", 1);
     }
 
+    addWireMetrics();
+
     return metrics;
   }
 
+  // Client spans: ClientSend -> WireSend is time queued in Finagle, WireSend -> WireRecv is the
+  // network and the server, WireRecv -> ClientRecv is reading and decoding the response
+  private void addWireMetrics() {
+    if (kind == Kind.CLIENT) {
+      if (wireSendTime >= startTime && wireSendTime != 0) {
+        metrics.put("finagle.wire.send_delay", wireSendTime - startTime);
+      }
+      if (wireRecvTime >= wireSendTime && wireSendTime != 0) {
+        metrics.put("finagle.wire.ttfb", wireRecvTime - wireSendTime);
+      }
+      if (endTime >= wireRecvTime && wireRecvTime != 0) {
+        metrics.put("finagle.wire.recv_delay", endTime - wireRecvTime);
+      }
+    }
+
+    if (sentFragments != 0) {
+      metrics.put("finagle.fragments.sent", sentFragments);
+    }
+    if (receivedFragments != 0) {
+      metrics.put("finagle.fragments.received", receivedFragments);
+    }
+  }
+
   private void addNetworkTags(Map<String, String> tagMap) {
     InetSocketAddress peerAddress = null;
     if (kind == Kind.SERVER) {
@@ -346,7 +461,12 @@ public class Span {
       if (kind == Kind.CLIENT) {
         tagMap.put("peer.port", String.valueOf(peerAddress.getPort()));
       }
-      tagMap.put("peer.hostname", peerAddress.getHostName());
+
+      // Omitted until the name has been resolved in the background
+      String hostname = HOSTNAMES.getHostName(peerAddress);
+      if (hostname != null) {
+        tagMap.put("peer.hostname", hostname);
+      }
     }
   }
 
@@ -0,0 +1,345 @@
+package datadog.trace.finagle;
+
+import com.twitter.finagle.http.HeaderMap;
+import com.twitter.finagle.tracing.Flags;
+import com.twitter.finagle.tracing.SpanId;
+import com.twitter.finagle.tracing.TraceId;
+import datadog.trace.api.sampling.PrioritySampling;
+import java.util.concurrent.ThreadLocalRandom;
+import scala.Option;
+
+/**
+ * Extracts upstream trace context from HTTP headers. B3 (multi and single header), Datadog and W3C
+ * {@code traceparent} headers are understood, in that order of precedence. Ids are parsed straight
+ * from the header values, without substrings or intermediate objects.
+ */
+final class TraceHeaders {
+  static final String B3 = "b3";
+  static final String B3_TRACE_ID = "X-B3-TraceId";
+  static final String B3_SPAN_ID = "X-B3-SpanId";
+  static final String B3_PARENT_SPAN_ID = "X-B3-ParentSpanId";
+  static final String B3_SAMPLED = "X-B3-Sampled";
+  static final String B3_FLAGS = "X-B3-Flags";
+  static final String DATADOG_TRACE_ID = "x-datadog-trace-id";
+  static final String DATADOG_PARENT_ID = "x-datadog-parent-id";
+  static final String DATADOG_SAMPLING_PRIORITY = "x-datadog-sampling-priority";
+  static final String TRACEPARENT = "traceparent";
+
+  private static final String[] ALL = {
+    B3,
+    B3_TRACE_ID,
+    B3_SPAN_ID,
+    B3_PARENT_SPAN_ID,
+    B3_SAMPLED,
+    B3_FLAGS,
+    DATADOG_TRACE_ID,
+    DATADOG_PARENT_ID,
+    DATADOG_SAMPLING_PRIORITY,
+    TRACEPARENT
+  };
+
+  private static final int SAMPLING_UNKNOWN = -1;
+  private static final int NOT_SAMPLED = 0;
+  private static final int SAMPLED = 1;
+
+  private static final Option<Object> SOME_TRUE = Option.apply(true);
+  private static final Option<Object> SOME_FALSE = Option.apply(false);
+
+  // Largest unsigned long divided by 10, for overflow checks on decimal ids
+  private static final long MAX_UNSIGNED_DIV_10 = Long.divideUnsigned(-1L, 10);
+
+  private TraceHeaders() {}
+
+  /**
+   * @return The trace id for a new server span that is a child of the upstream span, a new root
+   *     carrying the upstream decision when B3 only sends a sampling decision, or null if the
+   *     request carries no usable trace context
+   */
+  static TraceId extract(HeaderMap headers) {
+    TraceId traceId = extractB3(headers);
+    if (traceId == null) {
+      traceId = extractDatadog(headers);
+    }
+    if (traceId == null) {
+      traceId = extractW3c(headers);
+    }
+    return traceId;
+  }
+
+  /** Removes the trace context headers, so they aren't seen by the application or forwarded */
+  static void remove(HeaderMap headers) {
+    for (String header : ALL) {
+      headers.remove(header);
+    }
+  }
+
+  static Flags parseFlags(String value) {
+    return Flags.apply(parseDecimal(value));
+  }
+
+  private static TraceId extractB3(HeaderMap headers) {
+    String single = headers.getOrNull(B3);
+    if (single != null) {
+      TraceId traceId = parseB3Single(single);
+      if (traceId != null) {
+        return traceId;
+      }
+    }
+
+    int sampled = SAMPLING_UNKNOWN;
+    String sampledValue = headers.getOrNull(B3_SAMPLED);
+    if (sampledValue != null) {
+      boolean keep = "1".equals(sampledValue) || "true".equalsIgnoreCase(sampledValue);
+      sampled = keep ? SAMPLED : NOT_SAMPLED;
+    }
+
+    long flags = 0;
+    String flagsValue = headers.getOrNull(B3_FLAGS);
+    if (flagsValue != null) {
+      flags = parseDecimal(flagsValue);
+    }
+
+    String traceIdValue = headers.getOrNull(B3_TRACE_ID);
+    String spanIdValue = headers.getOrNull(B3_SPAN_ID);
+    if (traceIdValue == null && spanIdValue == null && sampled != SAMPLING_UNKNOWN) {
+      return root(sampled, flags);
+    }
+    if (traceIdValue == null || spanIdValue == null) {
+      return null;
+    }
+
+    int length = traceIdValue.length();
+    if (!isHex(traceIdValue, 0, length)
+        || (length != 16 && length != 32)
+        || spanIdValue.length() != 16
+        || !isHex(spanIdValue, 0, 16)) {
+      return null;
+    }
+
+    long parentId = parseHex(spanIdValue, 0);
+    long traceIdLow = parseHex(traceIdValue, length - 16);
+    long traceIdHigh = length == 32 ? parseHex(traceIdValue, 0) : 0;
+    if (parentId == 0 || traceIdLow == 0) {
+      return null;
+    }
+
+    return childOf(traceIdLow, traceIdHigh, parentId, sampled, flags);
+  }
+
+  // {traceId}-{spanId}[-{sampling}[-{parentSpanId}]] or only {sampling}, sampling being 0, 1 or d
+  // (debug)
+  private static TraceId parseB3Single(String value) {
+    if (value.length() == 1) {
+      char sampling = value.charAt(0);
+      int sampled = parseB3Sampling(sampling);
+      return sampled == SAMPLING_UNKNOWN ? null : root(sampled, b3Flags(sampling));
+    }
+
+    int traceIdEnd = value.indexOf('-');
+    int spanIdEnd = traceIdEnd + 17;
+    if ((traceIdEnd != 16 && traceIdEnd != 32)
+        || spanIdEnd > value.length()
+        || !isHex(value, 0, traceIdEnd)
+        || !isHex(value, traceIdEnd + 1, spanIdEnd)) {
+      return null;
+    }
+
+    long traceIdLow = parseHex(value, traceIdEnd - 16);
+    long traceIdHigh = traceIdEnd == 32 ? parseHex(value, 0) : 0;
+    long parentId = parseHex(value, traceIdEnd + 1);
+    if (traceIdLow == 0 || parentId == 0) {
+      return null;
+    }
+
+    int sampled = SAMPLING_UNKNOWN;
+    long flags = 0;
+    if (spanIdEnd < value.length()) {
+      if (value.charAt(spanIdEnd) != '-' || spanIdEnd + 1 == value.length()) {
+        return null;
+      }
+      char sampling = value.charAt(spanIdEnd + 1);
+      sampled = parseB3Sampling(sampling);
+      if (sampled == SAMPLING_UNKNOWN) {
+        return null;
+      }
+      flags = b3Flags(sampling);
+    }
+
+    return childOf(traceIdLow, traceIdHigh, parentId, sampled, flags);
+  }
+
+  private static int parseB3Sampling(char sampling) {
+    switch (sampling) {
+      case '1':
+      case 'd':
+        return SAMPLED;
+      case '0':
+        return NOT_SAMPLED;
+      default:
+        return SAMPLING_UNKNOWN;
+    }
+  }
+
+  private static long b3Flags(char sampling) {
+    return sampling == 'd' ? Flags.Debug() : 0;
+  }
+
+  private static TraceId extractDatadog(HeaderMap headers) {
+    String traceIdValue = headers.getOrNull(DATADOG_TRACE_ID);
+    String parentIdValue = headers.getOrNull(DATADOG_PARENT_ID);
+    if (traceIdValue == null || parentIdValue == null) {
+      return null;
+    }
+
+    long traceId = parseUnsignedDecimal(traceIdValue);
+    long parentId = parseUnsignedDecimal(parentIdValue);
+    if (traceId == 0 || parentId == 0) {
+      return null;
+    }
+
+    int sampled = SAMPLING_UNKNOWN;
+    long flags = 0;
+    String priorityValue = headers.getOrNull(DATADOG_SAMPLING_PRIORITY);
+    if (priorityValue != null && !priorityValue.isEmpty()) {
+      long priority = parseDecimal(priorityValue);
+      sampled = priority > 0 ? SAMPLED : NOT_SAMPLED;
+      if (priority >= PrioritySampling.USER_KEEP) {
+        flags = Flags.Debug();
+      }
+    }
+
+    return childOf(traceId, 0, parentId, sampled, flags);
+  }
+
+  // {version}-{traceId:32}-{parentId:16}-{flags:2}
+  private static TraceId extractW3c(HeaderMap headers) {
+    String value = headers.getOrNull(TRACEPARENT);
+    if (value == null
+        || value.length() < 55
+        || value.charAt(2) != '-'
+        || value.charAt(35) != '-'
+        || value.charAt(52) != '-'
+        || value.startsWith("ff")
+        || !isHex(value, 0, 2)
+        || !isHex(value, 3, 35)
+        || !isHex(value, 36, 52)
+        || !isHex(value, 53, 55)) {
+      return null;
+    }
+
+    long traceIdHigh = parseHex(value, 3);
+    long traceIdLow = parseHex(value, 19);
+    long parentId = parseHex(value, 36);
+    if (traceIdLow == 0 || parentId == 0) {
+      return null;
+    }
+
+    int sampled = (hexValue(value.charAt(54)) & 1) == 1 ? SAMPLED : NOT_SAMPLED;
+    return childOf(traceIdLow, traceIdHigh, parentId, sampled, 0);
+  }
+
+  private static TraceId childOf(
+      long traceIdLow, long traceIdHigh, long parentId, int sampled, long flags) {
+    return TraceId.apply(
+        Option.apply(SpanId.apply(traceIdLow)),
+        Option.apply(SpanId.apply(parentId)),
+        newSpanId(),
+        sampled == SAMPLING_UNKNOWN ? Option.empty() : sampled == SAMPLED ? SOME_TRUE : SOME_FALSE,
+        Flags.apply(flags),
+        traceIdHigh == 0 ? Option.empty() : Option.apply(SpanId.apply(traceIdHigh)),
+        false);
+  }
+
+  private static TraceId root(int sampled, long flags) {
+    SpanId id = newSpanId();
+    return TraceId.apply(
+        Option.apply(id),
+        Option.apply(id),
+        id,
+        sampled == SAMPLED ? SOME_TRUE : SOME_FALSE,
+        Flags.apply(flags),
+        Option.empty(),
+        false);
+  }
+
+  private static SpanId newSpanId() {
+    long nextId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    return SpanId.apply(nextId);
+  }
+
+  /** @return True if the range is not empty and only holds hex digits */
+  private static boolean isHex(String value, int start, int end) {
+    if (start >= end) {
+      return false;
+    }
+
+    for (int i = start; i < end; i++) {
+      if (hexValue(value.charAt(i)) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return The value of the 16 hex digits at start, which must have been checked by isHex */
+  private static long parseHex(String value, int start) {
+    long result = 0;
+    for (int i = start; i < start + 16; i++) {
+      result = (result << 4) | hexValue(value.charAt(i));
+    }
+    return result;
+  }
+
+  private static int hexValue(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    } else if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    } else if (c >= 'A' && c <= 'F') {
+      return c - 'A' + 10;
+    }
+    return -1;
+  }
+
+  /** @return The unsigned 64 bit value, 0 if empty, invalid or out of range */
+  private static long parseUnsignedDecimal(String value) {
+    int length = value.length();
+    if (length == 0 || length > 20) {
+      return 0;
+    }
+
+    long result = 0;
+    for (int i = 0; i < length; i++) {
+      int digit = value.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return 0;
+      }
+      if (Long.compareUnsigned(result, MAX_UNSIGNED_DIV_10) > 0
+          || (result == MAX_UNSIGNED_DIV_10 && digit > Long.remainderUnsigned(-1L, 10))) {
+        return 0;
+      }
+      result = result * 10 + digit;
+    }
+    return result;
+  }
+
+  /** @return The signed value, 0 if empty, invalid or out of range */
+  private static long parseDecimal(String value) {
+    int length = value.length();
+    boolean negative = length > 0 && value.charAt(0) == '-';
+    int start = negative ? 1 : 0;
+    if (length == start || length - start > 18) {
+      return 0;
+    }
+
+    long result = 0;
+    for (int i = start; i < length; i++) {
+      int digit = value.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return 0;
+      }
+      result = result * 10 + digit;
+    }
+    return negative ? -result : result;
+  }
+}
@@ -0,0 +1,238 @@
+package datadog.trace.finagle;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * Size capped ring of encoded batches kept in a memory-mapped file. Batches that could not be
+ * delivered to the agent are appended here and replayed oldest first once uploads succeed again.
+ * When the ring is full the oldest batches are overwritten.
+ *
+ * <p>Layout: a fixed header (magic, version, head, tail, count) followed by the data region. Each
+ * entry is {@code [int length][int traceCount][payload]}; an entry that does not fit before the
+ * end of the region is written at the start instead, leaving a {@code -1} length as a wrap marker
+ * when there is room for one. The header is kept up to date, so a spool left behind by a previous
+ * process is replayed as well.
+ *
+ * <p>The file is locked while it is open, a spool already in use by another process can't be
+ * opened.
+ */
+class TraceSpool implements Closeable {
+  private static final int MAGIC = 0x44445350; // DDSP
+  private static final int VERSION = 1;
+
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 4;
+  private static final int HEAD_OFFSET = 8;
+  private static final int TAIL_OFFSET = 12;
+  private static final int COUNT_OFFSET = 16;
+  private static final int HEADER_SIZE = 32;
+
+  private static final int ENTRY_HEADER_SIZE = 8;
+  private static final int WRAP = -1;
+
+  static class Batch {
+    final byte[] payload;
+    final int traceCount;
+    // Position of the batch in the spool since it was opened, see remove(Batch)
+    final long sequence;
+
+    Batch(byte[] payload, int traceCount, long sequence) {
+      this.payload = payload;
+      this.traceCount = traceCount;
+      this.sequence = sequence;
+    }
+  }
+
+  private final RandomAccessFile file;
+  // Positioned through Buffer, the covariant overrides of Java 9+ don't exist on Java 8
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+
+  // Offsets relative to the start of the data region
+  private int head;
+  private int tail;
+  private int count;
+  // Batches removed or evicted since the spool was opened
+  private long headSequence;
+
+  TraceSpool(File path, long maxBytes) throws IOException {
+    long size = Math.min(Math.max(maxBytes, HEADER_SIZE + 1024), Integer.MAX_VALUE);
+    this.capacity = (int) size - HEADER_SIZE;
+
+    File parent = path.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create spool directory " + parent);
+    }
+
+    this.file = new RandomAccessFile(path, "rw");
+    try {
+      FileLock lock;
+      try {
+        lock = file.getChannel().tryLock();
+      } catch (OverlappingFileLockException e) {
+        lock = null;
+      }
+      if (lock == null) {
+        throw new IOException("Spool " + path + " is already in use");
+      }
+
+      boolean resized = file.length() != size;
+      this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+      if (resized || !readHeader()) {
+        head = 0;
+        tail = 0;
+        count = 0;
+        writeHeader();
+      }
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return False if the payload can never fit in the spool. Otherwise the payload is stored,
+   *     evicting the oldest batches if needed.
+   */
+  synchronized boolean append(byte[] payload, int traceCount) {
+    int needed = ENTRY_HEADER_SIZE + payload.length;
+    if (needed > capacity) {
+      return false;
+    }
+
+    if (count == 0) {
+      head = 0;
+      tail = 0;
+    }
+
+    int position;
+    while ((position = findSlot(needed)) < 0) {
+      evictOldest();
+    }
+
+    if (position != tail && capacity - tail >= 4) {
+      buffer.putInt(HEADER_SIZE + tail, WRAP);
+    }
+
+    buffer.putInt(HEADER_SIZE + position, payload.length);
+    buffer.putInt(HEADER_SIZE + position + 4, traceCount);
+    ((Buffer) buffer).position(HEADER_SIZE + position + ENTRY_HEADER_SIZE);
+    buffer.put(payload);
+
+    tail = position + needed;
+    if (tail == capacity) {
+      tail = 0;
+    }
+    count++;
+    writeHeader();
+    return true;
+  }
+
+  /** @return The oldest batch without removing it, or null if the spool is empty */
+  synchronized Batch peek() {
+    if (count == 0) {
+      return null;
+    }
+
+    int position = entryStart(head);
+    int length = buffer.getInt(HEADER_SIZE + position);
+    int traceCount = buffer.getInt(HEADER_SIZE + position + 4);
+    byte[] payload = new byte[length];
+    ((Buffer) buffer).position(HEADER_SIZE + position + ENTRY_HEADER_SIZE);
+    buffer.get(payload);
+    return new Batch(payload, traceCount, headSequence);
+  }
+
+  /**
+   * Removes a batch returned by {@link #peek()} once it was delivered. Nothing is removed if the
+   * batch was evicted in the meantime.
+   */
+  synchronized void remove(Batch batch) {
+    if (count > 0 && batch.sequence == headSequence) {
+      evictOldest();
+      writeHeader();
+    }
+  }
+
+  synchronized boolean isEmpty() {
+    return count == 0;
+  }
+
+  synchronized int size() {
+    return count;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    buffer.force();
+    file.close();
+  }
+
+  private int findSlot(int needed) {
+    if (count == 0) {
+      return 0;
+    }
+
+    if (tail > head) {
+      if (needed <= capacity - tail) {
+        return tail;
+      }
+      return needed <= head ? 0 : -1;
+    }
+
+    if (tail < head && needed <= head - tail) {
+      return tail;
+    }
+    return -1;
+  }
+
+  private void evictOldest() {
+    int position = entryStart(head);
+    head = position + ENTRY_HEADER_SIZE + buffer.getInt(HEADER_SIZE + position);
+    if (head == capacity) {
+      head = 0;
+    }
+    headSequence++;
+
+    if (--count == 0) {
+      head = 0;
+      tail = 0;
+    }
+  }
+
+  private int entryStart(int position) {
+    if (capacity - position < ENTRY_HEADER_SIZE
+        || buffer.getInt(HEADER_SIZE + position) == WRAP) {
+      return 0;
+    }
+    return position;
+  }
+
+  private boolean readHeader() {
+    if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION) {
+      return false;
+    }
+
+    head = buffer.getInt(HEAD_OFFSET);
+    tail = buffer.getInt(TAIL_OFFSET);
+    count = buffer.getInt(COUNT_OFFSET);
+    return head >= 0 && head < capacity && tail >= 0 && tail < capacity && count >= 0;
+  }
+
+  private void writeHeader() {
+    buffer.putInt(MAGIC_OFFSET, MAGIC);
+    buffer.putInt(VERSION_OFFSET, VERSION);
+    buffer.putInt(HEAD_OFFSET, head);
+    buffer.putInt(TAIL_OFFSET, tail);
+    buffer.putInt(COUNT_OFFSET, count);
+  }
+}
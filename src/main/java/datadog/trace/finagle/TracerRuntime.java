@@ -0,0 +1,130 @@
+package datadog.trace.finagle;
+
+import com.twitter.finagle.stats.Gauge;
+import com.twitter.finagle.stats.StatsReceiver;
+import com.twitter.finagle.stats.StatsReceivers;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Threads and buffers shared by the tracers that report to the same agent: the flush scheduler,
+ * the writer pipeline and the overhead governor. Runtimes are reference counted, the first {@link
+ * #acquire} for an agent creates it and the last {@link #release} shuts it down.
+ */
+final class TracerRuntime {
+  static final long FLUSH_PERIOD = TimeUnit.SECONDS.toMillis(1);
+
+  private static final boolean SHARED = Settings.getBoolean("runtime.shared", true);
+
+  // Guarded by the class lock
+  private static final Map<String, TracerRuntime> RUNTIMES = new HashMap<>();
+
+  private final String key;
+  private final ScheduledExecutorService scheduler;
+  private final DDApi ddApi;
+  private final OverheadGovernor governor = OverheadGovernor.fromSettings();
+  private final Set<IntSupplier> pendingTraceCounts = new CopyOnWriteArraySet<>();
+  private final Gauge pendingTraces;
+  private final Gauge sampleRate;
+
+  // Guarded by the class lock
+  private int references;
+
+  private TracerRuntime(String key, String agentHost, int port, StatsReceiver statsReceiver) {
+    this.key = key;
+
+    ExecutionBackend backend = ExecutionBackends.get();
+    scheduler = backend.newScheduler("dd-tracer-flush");
+    ddApi = new DDApi(agentHost, port, statsReceiver, backend);
+
+    pendingTraces =
+        StatsReceivers.addGauge(
+            statsReceiver, () -> (float) getPendingTraceCount(), "traces", "pending");
+    sampleRate =
+        StatsReceivers.addGauge(
+            statsReceiver, () -> (float) governor.getSampleRate(), "governor", "sample_rate");
+
+    scheduler.scheduleAtFixedRate(
+        this::updateGovernor, FLUSH_PERIOD, FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param statsReceiver Used for the runtime's metrics when the runtime is created, already scoped
+   * @return The runtime for the agent, to be released when the tracer is closed
+   */
+  static synchronized TracerRuntime acquire(
+      String agentHost, int port, StatsReceiver statsReceiver) {
+    if (!SHARED) {
+      TracerRuntime runtime = new TracerRuntime(null, agentHost, port, statsReceiver);
+      runtime.references = 1;
+      return runtime;
+    }
+
+    String key = agentHost + ":" + port;
+    TracerRuntime runtime = RUNTIMES.get(key);
+    if (runtime == null) {
+      runtime = new TracerRuntime(key, agentHost, port, statsReceiver);
+      RUNTIMES.put(key, runtime);
+    }
+    runtime.references++;
+    return runtime;
+  }
+
+  /**
+   * Stops the threads once no tracer uses the runtime anymore, after the queued traces were sent or
+   * the timeout expired.
+   */
+  void release(long timeout, TimeUnit unit) {
+    synchronized (TracerRuntime.class) {
+      if (--references > 0) {
+        return;
+      }
+      if (key != null) {
+        RUNTIMES.remove(key);
+      }
+    }
+
+    scheduler.shutdownNow();
+    pendingTraces.remove();
+    sampleRate.remove();
+    ddApi.close(timeout, unit);
+  }
+
+  ScheduledExecutorService getScheduler() {
+    return scheduler;
+  }
+
+  DDApi getApi() {
+    return ddApi;
+  }
+
+  OverheadGovernor getGovernor() {
+    return governor;
+  }
+
+  /** Includes a tracer's pending traces in the governor's budget until it is removed */
+  void addPendingTraceCount(IntSupplier pendingTraceCount) {
+    pendingTraceCounts.add(pendingTraceCount);
+  }
+
+  void removePendingTraceCount(IntSupplier pendingTraceCount) {
+    pendingTraceCounts.remove(pendingTraceCount);
+  }
+
+  private int getPendingTraceCount() {
+    int count = 0;
+    for (IntSupplier pendingTraceCount : pendingTraceCounts) {
+      count += pendingTraceCount.getAsInt();
+    }
+    return count;
+  }
+
+  private void updateGovernor() {
+    governor.update(getPendingTraceCount(), ddApi.getQueueFill(), ddApi.getWriterCpuNanos());
+  }
+}
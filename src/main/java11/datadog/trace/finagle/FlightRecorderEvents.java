@@ -0,0 +1,204 @@
+package datadog.trace.finagle;
+
+import java.util.List;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event definitions. Only loaded through {@link JfrEvents} once JFR is present, and
+ * only packaged for Java 11+ where {@code jdk.jfr} is always there to compile against.
+ */
+final class FlightRecorderEvents {
+  private FlightRecorderEvents() {}
+
+  @Name("datadog.finagle.Record")
+  @Label("Record")
+  @Category({"Datadog", "Finagle Tracer"})
+  @Description("A Finagle record handled by DatadogTracer.record")
+  static final class RecordEvent extends Event {
+    @Label("Annotation")
+    String annotation;
+
+    @Label("Pending Traces")
+    int pendingTraces;
+  }
+
+  @Name("datadog.finagle.TraceCompleted")
+  @Label("Trace Completed")
+  @Category({"Datadog", "Finagle Tracer"})
+  @Description("A pending trace handed to the writer")
+  static final class TraceCompletedEvent extends Event {
+    @Label("Spans")
+    int spanCount;
+
+    @Label("Expired")
+    @Description("Flushed because it timed out rather than completed")
+    boolean expired;
+
+    @Label("Assembly Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long assemblyTime;
+  }
+
+  @Name("datadog.finagle.Flush")
+  @Label("Flush")
+  @Category({"Datadog", "Finagle Tracer"})
+  @Description("A periodic scan for completed and expired traces")
+  static final class FlushEvent extends Event {
+    @Label("Completed Traces")
+    int completedTraces;
+
+    @Label("Expired Traces")
+    int expiredTraces;
+
+    @Label("Pending Traces")
+    int pendingTraces;
+  }
+
+  @Name("datadog.finagle.Serialization")
+  @Label("Serialization")
+  @Category({"Datadog", "Finagle Tracer"})
+  @Description("Encoding of a batch of traces")
+  static final class SerializationEvent extends Event {
+    @Label("Traces")
+    int traceCount;
+
+    @Label("Spans")
+    int spanCount;
+
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+  }
+
+  @Name("datadog.finagle.AgentSend")
+  @Label("Agent Send")
+  @Category({"Datadog", "Finagle Tracer"})
+  @Description("An HTTP request to the Datadog agent")
+  static final class AgentSendEvent extends Event {
+    @Label("Traces")
+    int traceCount;
+
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+
+    @Label("Status Code")
+    @Description("HTTP status, or -1 if the request failed")
+    int statusCode;
+  }
+
+  private static final EventType RECORD = EventType.getEventType(RecordEvent.class);
+  private static final EventType TRACE_COMPLETED =
+      EventType.getEventType(TraceCompletedEvent.class);
+  private static final EventType FLUSH = EventType.getEventType(FlushEvent.class);
+  private static final EventType SERIALIZATION = EventType.getEventType(SerializationEvent.class);
+  private static final EventType AGENT_SEND = EventType.getEventType(AgentSendEvent.class);
+
+  static boolean isAvailable() {
+    return FlightRecorder.isAvailable();
+  }
+
+  static Object beginRecord() {
+    if (!RECORD.isEnabled()) {
+      return null;
+    }
+    RecordEvent event = new RecordEvent();
+    event.begin();
+    return event;
+  }
+
+  static void endRecord(Object event, Object annotation, int pendingTraces) {
+    RecordEvent recordEvent = (RecordEvent) event;
+    recordEvent.end();
+    if (recordEvent.shouldCommit()) {
+      recordEvent.annotation = annotation.getClass().getSimpleName();
+      recordEvent.pendingTraces = pendingTraces;
+      recordEvent.commit();
+    }
+  }
+
+  static void traceCompleted(PendingTrace trace, boolean expired) {
+    if (!TRACE_COMPLETED.isEnabled()) {
+      return;
+    }
+    TraceCompletedEvent event = new TraceCompletedEvent();
+    if (event.shouldCommit()) {
+      event.spanCount = trace.getSpanCount();
+      event.expired = expired;
+      event.assemblyTime = System.nanoTime() - trace.getStartNanos();
+      event.commit();
+    }
+  }
+
+  static Object beginFlush() {
+    if (!FLUSH.isEnabled()) {
+      return null;
+    }
+    FlushEvent event = new FlushEvent();
+    event.begin();
+    return event;
+  }
+
+  static void endFlush(Object event, int completed, int expired, int pending) {
+    FlushEvent flushEvent = (FlushEvent) event;
+    flushEvent.end();
+    if (flushEvent.shouldCommit()) {
+      flushEvent.completedTraces = completed;
+      flushEvent.expiredTraces = expired;
+      flushEvent.pendingTraces = pending;
+      flushEvent.commit();
+    }
+  }
+
+  static Object beginSerialization() {
+    if (!SERIALIZATION.isEnabled()) {
+      return null;
+    }
+    SerializationEvent event = new SerializationEvent();
+    event.begin();
+    return event;
+  }
+
+  static void endSerialization(Object event, List<List<Span>> traces, int bytes) {
+    SerializationEvent serializationEvent = (SerializationEvent) event;
+    serializationEvent.end();
+    if (serializationEvent.shouldCommit()) {
+      int spanCount = 0;
+      for (List<Span> trace : traces) {
+        spanCount += trace.size();
+      }
+      serializationEvent.traceCount = traces.size();
+      serializationEvent.spanCount = spanCount;
+      serializationEvent.bytes = bytes;
+      serializationEvent.commit();
+    }
+  }
+
+  static Object beginSend() {
+    if (!AGENT_SEND.isEnabled()) {
+      return null;
+    }
+    AgentSendEvent event = new AgentSendEvent();
+    event.begin();
+    return event;
+  }
+
+  static void endSend(Object event, int traceCount, int bytes, int statusCode) {
+    AgentSendEvent sendEvent = (AgentSendEvent) event;
+    sendEvent.end();
+    if (sendEvent.shouldCommit()) {
+      sendEvent.traceCount = traceCount;
+      sendEvent.bytes = bytes;
+      sendEvent.statusCode = statusCode;
+      sendEvent.commit();
+    }
+  }
+}
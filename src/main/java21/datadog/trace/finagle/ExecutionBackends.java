@@ -0,0 +1,31 @@
+package datadog.trace.finagle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses the execution backend from {@code dd.trace.finagle.execution.backend}. This is the Java
+ * 21 version from the multi-release jar, it uses virtual threads unless platform threads are
+ * requested.
+ */
+final class ExecutionBackends {
+  private static final Logger log = LoggerFactory.getLogger(ExecutionBackends.class);
+
+  private static final ExecutionBackend BACKEND =
+      create(Settings.getString("execution.backend", "auto"));
+
+  private ExecutionBackends() {}
+
+  static ExecutionBackend get() {
+    return BACKEND;
+  }
+
+  private static ExecutionBackend create(String name) {
+    if ("platform".equals(name)) {
+      return new PlatformThreadBackend();
+    } else if (!"auto".equals(name) && !"virtual".equals(name)) {
+      log.warn("Unknown execution backend {}, using virtual threads", name);
+    }
+    return new VirtualThreadBackend();
+  }
+}
@@ -0,0 +1,22 @@
+package datadog.trace.finagle;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs agent uploads on virtual threads, so blocking on the agent doesn't hold a platform thread.
+ * The flush scheduler and the writer loop are CPU bound and long lived, they stay on platform
+ * threads where the writer's CPU time can be measured.
+ */
+class VirtualThreadBackend extends PlatformThreadBackend {
+  @Override
+  public ExecutorService newUploadExecutor(String name, int concurrency) {
+    // Concurrency is bounded by the caller, a thread per upload is cheap
+    return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+  }
+
+  @Override
+  public boolean hasVirtualUploads() {
+    return true;
+  }
+}
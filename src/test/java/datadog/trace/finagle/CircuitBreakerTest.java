@@ -0,0 +1,69 @@
+package datadog.trace.finagle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+  @Test
+  public void opensAfterConsecutiveFailures() {
+    CircuitBreaker breaker = new CircuitBreaker(3, 60000, 60000);
+
+    assertFalse(breaker.onFailure());
+    assertFalse(breaker.onFailure());
+    assertTrue(breaker.onFailure());
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+  }
+
+  @Test
+  public void successResetsTheFailureCount() {
+    CircuitBreaker breaker = new CircuitBreaker(2, 60000, 60000);
+
+    breaker.onFailure();
+    breaker.onSuccess();
+    assertFalse(breaker.onFailure());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void allowsOneProbeOnceTheOpenPeriodElapsed() throws InterruptedException {
+    CircuitBreaker breaker = new CircuitBreaker(1, 20, 1000);
+    breaker.onFailure();
+
+    Thread.sleep(40);
+    assertTrue(breaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+    breaker.onSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void failedProbeDoublesTheOpenPeriod() throws InterruptedException {
+    CircuitBreaker breaker = new CircuitBreaker(1, 200, 1000);
+    breaker.onFailure();
+    assertTrue(breaker.remainingOpenMillis() <= 200);
+
+    Thread.sleep(250);
+    assertTrue(breaker.allowRequest());
+    assertTrue(breaker.onFailure());
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertTrue(breaker.remainingOpenMillis() > 200);
+  }
+
+  @Test
+  public void openPeriodIsCapped() throws InterruptedException {
+    CircuitBreaker breaker = new CircuitBreaker(1, 20, 30);
+    breaker.onFailure();
+
+    for (int i = 0; i < 3; i++) {
+      Thread.sleep(40);
+      assertTrue(breaker.allowRequest());
+      breaker.onFailure();
+    }
+    assertTrue(breaker.remainingOpenMillis() <= 30);
+  }
+}
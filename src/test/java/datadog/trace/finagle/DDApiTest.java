@@ -0,0 +1,193 @@
+package datadog.trace.finagle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.twitter.finagle.stats.InMemoryStatsReceiver;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import scala.Option;
+import scala.collection.JavaConverters;
+
+/** Uploads to an agent that fails on demand, with the default retry and breaker settings */
+public class DDApiTest {
+  private FlappingAgent agent;
+  private InMemoryStatsReceiver stats;
+  private DDApi api;
+
+  @Before
+  public void setUp() throws IOException {
+    agent = new FlappingAgent();
+    stats = new InMemoryStatsReceiver();
+    api = new DDApi("127.0.0.1", agent.getPort(), stats);
+  }
+
+  @After
+  public void tearDown() {
+    api.close();
+    agent.close();
+  }
+
+  @Test
+  public void retriesTransientFailures() throws InterruptedException {
+    agent.failNext(2);
+
+    api.sendTrace(new PendingTrace("test"));
+
+    awaitTrue(() -> counter("sent_traces") == 1);
+    assertEquals(1, agent.getTraces());
+    assertEquals(2, counter("retries"));
+    assertEquals(0, counter("queue", "dropped"));
+  }
+
+  @Test
+  public void dropsTheBatchOnceTheRetriesAreExhausted() throws InterruptedException {
+    agent.setDown(true);
+
+    api.sendTrace(new PendingTrace("test"));
+
+    awaitTrue(() -> counter("queue", "dropped") == 1);
+    // One attempt and three retries
+    assertEquals(4, agent.getRequests());
+    assertEquals(3, counter("retries"));
+    assertEquals(0, counter("circuit_breaker", "opened"));
+  }
+
+  @Test
+  public void doesNotRetryRejectedPayloads() throws InterruptedException {
+    agent.setStatus(400);
+
+    api.sendTrace(new PendingTrace("test"));
+
+    awaitTrue(() -> counter("status", "400") == 1);
+    assertEquals(1, agent.getRequests());
+    assertEquals(0, counter("retries"));
+    assertEquals(0, counter("sent_traces"));
+  }
+
+  @Test
+  public void opensTheBreakerAndProbesUntilTheAgentIsBack() throws InterruptedException {
+    agent.setDown(true);
+    for (int i = 1; i <= 3; i++) {
+      api.sendTrace(new PendingTrace("test"));
+      long dropped = i;
+      awaitTrue(() -> counter("queue", "dropped") == dropped);
+    }
+    assertEquals(1, counter("circuit_breaker", "opened"));
+
+    // Queued while the breaker is open, then sent after a successful probe
+    int requests = agent.getRequests();
+    api.sendTrace(new PendingTrace("test"));
+    Thread.sleep(200);
+    assertEquals(requests, agent.getRequests());
+
+    agent.setDown(false);
+    awaitTrue(() -> counter("sent_traces") == 1);
+    assertEquals(1, agent.getTraces());
+    assertTrue(agent.getProbes() >= 1);
+    assertEquals(3, counter("queue", "dropped"));
+  }
+
+  private long counter(String... name) {
+    Option<Object> value =
+        stats.counters().get(JavaConverters.asScalaBuffer(Arrays.asList(name)).toList());
+    return value.isDefined() ? (Long) value.get() : 0;
+  }
+
+  private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+    while (!condition.getAsBoolean()) {
+      assertTrue("Timed out", System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  /** Answers with 503 while down or for the next failed requests, with 200 otherwise */
+  private static final class FlappingAgent {
+    private final HttpServer server;
+
+    // Guarded by this
+    private boolean down;
+    private int failures;
+    private int status = 200;
+    private int requests;
+    private int probes;
+    private int traces;
+
+    FlappingAgent() throws IOException {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/v0.4/traces", this::handle);
+      server.start();
+    }
+
+    int getPort() {
+      return server.getAddress().getPort();
+    }
+
+    synchronized void setDown(boolean down) {
+      this.down = down;
+    }
+
+    synchronized void failNext(int failures) {
+      this.failures = failures;
+    }
+
+    synchronized void setStatus(int status) {
+      this.status = status;
+    }
+
+    synchronized int getRequests() {
+      return requests;
+    }
+
+    synchronized int getProbes() {
+      return probes;
+    }
+
+    synchronized int getTraces() {
+      return traces;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+      try (InputStream body = exchange.getRequestBody()) {
+        while (body.read() >= 0) {}
+      }
+      int traceCount =
+          Integer.parseInt(exchange.getRequestHeaders().getFirst("X-Datadog-Trace-Count"));
+
+      int responseCode;
+      synchronized (this) {
+        if (traceCount == 0) {
+          probes++;
+        } else {
+          requests++;
+        }
+
+        if (down || failures > 0) {
+          failures = Math.max(0, failures - 1);
+          responseCode = 503;
+        } else {
+          responseCode = status;
+          if (status == 200) {
+            traces += traceCount;
+          }
+        }
+      }
+      exchange.sendResponseHeaders(responseCode, -1);
+      exchange.close();
+    }
+
+    void close() {
+      server.stop(0);
+    }
+  }
+}
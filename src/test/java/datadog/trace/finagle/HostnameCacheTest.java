@@ -0,0 +1,118 @@
+package datadog.trace.finagle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.Test;
+
+public class HostnameCacheTest {
+  private final List<InetAddress> lookups = new CopyOnWriteArrayList<>();
+
+  @Test
+  public void resolvesInTheBackgroundThenHits() throws Exception {
+    HostnameCache cache = new HostnameCache(16, 60000, 16, this::lookup);
+    InetSocketAddress peer = peer(10, 0, 0, 1);
+
+    assertNull(cache.getHostName(peer));
+    awaitTrue(() -> cache.getHostName(peer) != null);
+
+    assertEquals("host-1", cache.getHostName(peer));
+    assertEquals(1, lookups.size());
+  }
+
+  @Test
+  public void refreshesExpiredNames() throws Exception {
+    HostnameCache cache = new HostnameCache(16, 0, 16, this::lookup);
+    InetSocketAddress peer = peer(10, 0, 0, 1);
+
+    cache.getHostName(peer);
+    awaitTrue(() -> "host-1".equals(cache.getHostName(peer)));
+
+    // The expired name is returned until the new one is resolved
+    awaitTrue(() -> "host-2".equals(cache.getHostName(peer)));
+  }
+
+  @Test
+  public void dropsLookupsThatOverflowTheQueue() throws Exception {
+    CountDownLatch blocked = new CountDownLatch(1);
+    HostnameCache cache =
+        new HostnameCache(
+            16,
+            60000,
+            1,
+            address -> {
+              try {
+                blocked.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              return lookup(address);
+            });
+    InetSocketAddress running = peer(10, 0, 0, 1);
+    InetSocketAddress queued = peer(10, 0, 0, 2);
+    InetSocketAddress rejected = peer(10, 0, 0, 3);
+
+    assertNull(cache.getHostName(running));
+    assertNull(cache.getHostName(queued));
+    assertNull(cache.getHostName(rejected));
+    blocked.countDown();
+
+    awaitTrue(() -> cache.getHostName(queued) != null);
+    assertEquals(2, lookups.size());
+
+    // Retried when seen again
+    assertNull(cache.getHostName(rejected));
+    awaitTrue(() -> cache.getHostName(rejected) != null);
+    assertEquals(rejected.getAddress(), lookups.get(2));
+  }
+
+  @Test
+  public void returnsTheHostNameTheAddressWasCreatedWith() throws Exception {
+    HostnameCache cache = new HostnameCache(16, 60000, 16, this::lookup);
+    InetSocketAddress peer =
+        new InetSocketAddress(InetAddress.getByAddress("db.local", new byte[] {10, 0, 0, 1}), 5432);
+
+    assertEquals("db.local", cache.getHostName(peer));
+    assertTrue(lookups.isEmpty());
+  }
+
+  @Test
+  public void looksUpIpv6Literals() throws Exception {
+    HostnameCache cache = new HostnameCache(16, 60000, 16, this::lookup);
+    // The host string is the literal as written, not the full form of getHostAddress
+    InetSocketAddress peer = new InetSocketAddress("::1", 80);
+
+    assertNull(cache.getHostName(peer));
+    awaitTrue(() -> "host-1".equals(cache.getHostName(peer)));
+  }
+
+  private String lookup(InetAddress address) {
+    lookups.add(address);
+    return "host-" + lookups.size();
+  }
+
+  private static InetSocketAddress peer(int... ip) throws UnknownHostException {
+    byte[] address = new byte[ip.length];
+    for (int i = 0; i < ip.length; i++) {
+      address[i] = (byte) ip[i];
+    }
+    return new InetSocketAddress(InetAddress.getByAddress(address), 80);
+  }
+
+  private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+    while (!condition.getAsBoolean()) {
+      assertTrue("Timed out", System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package datadog.trace.finagle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.twitter.finagle.tracing.Flags;
+import com.twitter.finagle.tracing.SpanId;
+import com.twitter.finagle.tracing.TraceId;
+import java.util.Random;
+import org.junit.Test;
+import scala.Option;
+
+public class OverheadGovernorTest {
+  private static final double MIN_SAMPLE_RATE = 0.01;
+
+  private final Random random = new Random(42);
+  private final OverheadGovernor governor =
+      new OverheadGovernor(true, 1e12, 1000, 0.8, 0.2, MIN_SAMPLE_RATE);
+
+  @Test
+  public void samplesEveryTraceWithinBudget() {
+    governor.update(100, 0.1, -1);
+
+    assertEquals(1.0, governor.getSampleRate(), 0);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(governor.sample(traceId(random.nextLong())));
+    }
+  }
+
+  @Test
+  public void cutsTheRateAtLeastByHalfOverBudget() {
+    governor.update(1500, 0, -1);
+    assertEquals(0.5, governor.getSampleRate(), 0);
+
+    // Four times over budget
+    governor.update(4000, 0, -1);
+    assertEquals(0.125, governor.getSampleRate(), 0);
+  }
+
+  @Test
+  public void neverGoesBelowTheMinimumRate() {
+    for (int i = 0; i < 20; i++) {
+      governor.update(1000000, 1, -1);
+    }
+    assertEquals(MIN_SAMPLE_RATE, governor.getSampleRate(), 0);
+  }
+
+  @Test
+  public void raisesTheRateBackWithHeadroom() {
+    governor.update(2000, 0, -1);
+    double lowered = governor.getSampleRate();
+
+    // Between the headroom and the budget the rate holds
+    governor.update(800, 0, -1);
+    assertEquals(lowered, governor.getSampleRate(), 0);
+
+    for (int i = 0; i < 10; i++) {
+      governor.update(0, 0, -1);
+    }
+    assertEquals(1.0, governor.getSampleRate(), 0);
+  }
+
+  @Test
+  public void samplesTheGivenFractionOfTraces() {
+    governor.update(4000, 0, -1);
+    double rate = governor.getSampleRate();
+
+    int sampled = 0;
+    int traces = 100000;
+    for (int i = 0; i < traces; i++) {
+      if (governor.sample(traceId(random.nextLong()))) {
+        sampled++;
+      }
+    }
+    assertEquals(rate, (double) sampled / traces, 0.01);
+  }
+
+  @Test
+  public void disabledGovernorKeepsEveryTrace() {
+    OverheadGovernor disabled = new OverheadGovernor(false, 1, 1, 0.8, 0.2, MIN_SAMPLE_RATE);
+    disabled.update(1000000, 1, -1);
+
+    assertEquals(1.0, disabled.getSampleRate(), 0);
+  }
+
+  private static TraceId traceId(long id) {
+    return TraceId.apply(
+        Option.apply(SpanId.apply(id)),
+        Option.empty(),
+        SpanId.apply(id),
+        Option.empty(),
+        Flags.apply(),
+        Option.empty(),
+        false);
+  }
+}
@@ -0,0 +1,108 @@
+package datadog.trace.finagle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.twitter.finagle.tracing.Annotation;
+import com.twitter.finagle.tracing.Flags;
+import com.twitter.finagle.tracing.Record;
+import com.twitter.finagle.tracing.SpanId;
+import com.twitter.finagle.tracing.TraceId;
+import com.twitter.util.Time;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import scala.Option;
+
+public class PendingTraceTest {
+  private static final TraceId SERVER = traceId(1, 1);
+  private static final TraceId CLIENT = traceId(2, 1);
+
+  @Test
+  public void reportsWireTimingsOnClientSpans() {
+    PendingTrace trace = new PendingTrace("test");
+    trace.addRecord(record(SERVER, 0, Annotation.ServerRecv$.MODULE$));
+    trace.addRecord(record(SERVER, 1, Annotation.WireRecv$.MODULE$));
+    trace.addRecord(record(SERVER, 1, Annotation.ServerRecvFragment$.MODULE$));
+
+    trace.addRecord(record(CLIENT, 2, Annotation.ClientSend$.MODULE$));
+    trace.addRecord(record(CLIENT, 5, Annotation.WireSend$.MODULE$));
+    trace.addRecord(record(CLIENT, 5, Annotation.ClientSendFragment$.MODULE$));
+    trace.addRecord(record(CLIENT, 6, Annotation.ClientSendFragment$.MODULE$));
+    trace.addRecord(record(CLIENT, 13, Annotation.WireRecv$.MODULE$));
+    // Only the first wire timestamps count
+    trace.addRecord(record(CLIENT, 14, Annotation.WireRecv$.MODULE$));
+    trace.addRecord(record(CLIENT, 13, Annotation.ClientRecvFragment$.MODULE$));
+    trace.addRecord(record(CLIENT, 14, Annotation.ClientRecvFragment$.MODULE$));
+    trace.addRecord(record(CLIENT, 15, Annotation.ClientRecvFragment$.MODULE$));
+    trace.addRecord(record(CLIENT, 16, Annotation.ClientRecv$.MODULE$));
+
+    trace.addRecord(record(SERVER, 18, Annotation.WireSend$.MODULE$));
+    trace.addRecord(record(SERVER, 18, Annotation.ServerSendFragment$.MODULE$));
+    trace.addRecord(record(SERVER, 20, Annotation.ServerSend$.MODULE$));
+    assertTrue(trace.isComplete());
+
+    Map<String, Number> client = metrics(trace, CLIENT);
+    assertEquals(millis(3), client.get("finagle.wire.send_delay").longValue());
+    assertEquals(millis(8), client.get("finagle.wire.ttfb").longValue());
+    assertEquals(millis(3), client.get("finagle.wire.recv_delay").longValue());
+    assertEquals(2, client.get("finagle.fragments.sent").intValue());
+    assertEquals(3, client.get("finagle.fragments.received").intValue());
+
+    // Server spans only report their fragment counts
+    Map<String, Number> server = metrics(trace, SERVER);
+    assertFalse(server.containsKey("finagle.wire.send_delay"));
+    assertFalse(server.containsKey("finagle.wire.ttfb"));
+    assertFalse(server.containsKey("finagle.wire.recv_delay"));
+    assertEquals(1, server.get("finagle.fragments.sent").intValue());
+    assertEquals(1, server.get("finagle.fragments.received").intValue());
+  }
+
+  @Test
+  public void omitsWireTimingsThatWereNotRecorded() {
+    PendingTrace trace = new PendingTrace("test");
+    trace.addRecord(record(SERVER, 0, Annotation.ServerRecv$.MODULE$));
+    trace.addRecord(record(CLIENT, 2, Annotation.ClientSend$.MODULE$));
+    trace.addRecord(record(CLIENT, 16, Annotation.ClientRecv$.MODULE$));
+    trace.addRecord(record(SERVER, 20, Annotation.ServerSend$.MODULE$));
+
+    Map<String, Number> client = metrics(trace, CLIENT);
+    assertFalse(client.containsKey("finagle.wire.send_delay"));
+    assertFalse(client.containsKey("finagle.wire.ttfb"));
+    assertFalse(client.containsKey("finagle.wire.recv_delay"));
+    assertFalse(client.containsKey("finagle.fragments.sent"));
+    assertFalse(client.containsKey("finagle.fragments.received"));
+  }
+
+  private static Map<String, Number> metrics(PendingTrace trace, TraceId traceId) {
+    BigInteger spanId = new BigInteger(traceId.spanId().toString(), 16);
+    for (Span span : trace.getSpans()) {
+      if (span.getSpanId().equals(spanId)) {
+        return span.getMetrics();
+      }
+    }
+    throw new AssertionError("No span " + spanId);
+  }
+
+  private static long millis(long millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  private static Record record(TraceId traceId, long millis, Annotation annotation) {
+    return new Record(
+        traceId, Time.fromNanoseconds(millis(1000 + millis)), annotation, Option.empty());
+  }
+
+  private static TraceId traceId(long spanId, long parentId) {
+    return TraceId.apply(
+        Option.apply(SpanId.apply(1)),
+        Option.apply(SpanId.apply(parentId)),
+        SpanId.apply(spanId),
+        Option.apply(true),
+        Flags.apply(),
+        Option.empty(),
+        false);
+  }
+}
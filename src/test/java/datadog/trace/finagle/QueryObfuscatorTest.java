@@ -0,0 +1,30 @@
+package datadog.trace.finagle;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class QueryObfuscatorTest {
+  @Test
+  public void replacesLiterals() {
+    assertEquals(
+        "SELECT * FROM users WHERE id = ? AND name = ? AND role IN (?)",
+        QueryObfuscator.obfuscateSql(
+            "SELECT * FROM users WHERE id = 42 AND name = 'O''Brien' AND role IN (1, 2, 3)"));
+    assertEquals("GET ?", QueryObfuscator.obfuscateRedis("GET user:1"));
+  }
+
+  @Test
+  public void capsDistinctResourcesPerWindow() throws InterruptedException {
+    QueryObfuscator obfuscator = new QueryObfuscator(true, 16, 1, 200);
+    QueryObfuscator.Kind sql = QueryObfuscator.Kind.SQL;
+
+    assertEquals("SELECT a FROM t", obfuscator.resourceName(sql, "SELECT a FROM t"));
+    assertEquals("sql.query", obfuscator.resourceName(sql, "SELECT b FROM t"));
+    // Resources seen in the window are still reported
+    assertEquals("SELECT a FROM t", obfuscator.resourceName(sql, "SELECT a FROM t"));
+
+    Thread.sleep(250);
+    assertEquals("SELECT b FROM t", obfuscator.resourceName(sql, "SELECT b FROM t"));
+  }
+}
@@ -0,0 +1,108 @@
+package datadog.trace.finagle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.twitter.finagle.tracing.Annotation;
+import com.twitter.finagle.tracing.Flags;
+import com.twitter.finagle.tracing.Record;
+import com.twitter.finagle.tracing.SpanId;
+import com.twitter.finagle.tracing.TraceId;
+import com.twitter.util.Duration;
+import com.twitter.util.Time;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import scala.Option;
+
+public class RecordCaptureTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void replaysTheCapturedRecords() throws IOException {
+    TraceId traceId = traceId(Option.apply(true), 0, false);
+    List<Record> records =
+        Arrays.asList(
+            record(traceId, Annotation.ServerRecv$.MODULE$),
+            record(traceId, new Annotation.Rpc("GET")),
+            record(traceId, new Annotation.BinaryAnnotation("http.status_code", 200)),
+            record(traceId, new Annotation.ServerAddr(new InetSocketAddress("127.0.0.1", 8080))),
+            new Record(
+                traceId,
+                Time.fromNanoseconds(3000),
+                Annotation.ServerSend$.MODULE$,
+                Option.apply(Duration.fromNanoseconds(5))));
+
+    List<Record> replayed = captureAndRead(records);
+
+    assertEquals(records.size(), replayed.size());
+    for (int i = 0; i < records.size(); i++) {
+      assertEquals(records.get(i).toString(), replayed.get(i).toString());
+    }
+  }
+
+  @Test
+  public void keepsTraceIdsThatOnlyDifferBySamplingFlagsOrTerminal() throws IOException {
+    List<TraceId> variants =
+        Arrays.asList(
+            traceId(Option.empty(), 0, false),
+            traceId(Option.apply(false), 0, false),
+            traceId(Option.apply(true), Flags.Debug(), false),
+            traceId(Option.apply(true), Flags.Debug(), true),
+            traceId(Option.empty(), 0, false));
+    List<Record> records = new ArrayList<>();
+    for (TraceId variant : variants) {
+      records.add(record(variant, Annotation.ServerRecv$.MODULE$));
+    }
+
+    List<Record> replayed = captureAndRead(records);
+
+    for (int i = 0; i < variants.size(); i++) {
+      TraceId expected = variants.get(i);
+      TraceId actual = replayed.get(i).traceId();
+      assertEquals(expected._sampled(), actual._sampled());
+      assertEquals(expected.flags(), actual.flags());
+      assertEquals(expected.terminal(), actual.terminal());
+    }
+  }
+
+  private List<Record> captureAndRead(List<Record> records) throws IOException {
+    File path = folder.newFile();
+    RecordCapture capture = new RecordCapture(path, 1 << 20);
+    for (Record record : records) {
+      capture.write(record);
+    }
+    capture.close();
+
+    List<Record> replayed = new ArrayList<>();
+    try (CaptureReader reader = new CaptureReader(path)) {
+      Record record;
+      while ((record = reader.next()) != null) {
+        replayed.add(record);
+      }
+      assertNull(reader.next());
+    }
+    return replayed;
+  }
+
+  private static Record record(TraceId traceId, Annotation annotation) {
+    return new Record(traceId, Time.fromNanoseconds(1000), annotation, Option.empty());
+  }
+
+  private static TraceId traceId(Option<Object> sampled, long flags, boolean terminal) {
+    return TraceId.apply(
+        Option.apply(SpanId.apply(1)),
+        Option.apply(SpanId.apply(2)),
+        SpanId.apply(3),
+        sampled,
+        Flags.apply(flags),
+        Option.empty(),
+        terminal);
+  }
+}
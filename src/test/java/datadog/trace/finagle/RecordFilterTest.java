@@ -0,0 +1,57 @@
+package datadog.trace.finagle;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.twitter.finagle.tracing.Annotation;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+public class RecordFilterTest {
+  @Test
+  public void deniesTheGcKeysByDefault() {
+    RecordFilter filter = RecordFilter.fromSettings();
+
+    assertFalse(filter.accept(new Annotation.BinaryAnnotation("jvm/gc_count", 1)));
+    assertFalse(filter.accept(new Annotation.BinaryAnnotation("jvm/gc_ms", 12)));
+    assertTrue(filter.accept(new Annotation.BinaryAnnotation("http.uri", "/")));
+    assertTrue(filter.accept(Annotation.WireSend$.MODULE$));
+  }
+
+  @Test
+  public void alwaysAcceptsTheLifecycleAnnotations() {
+    RecordFilter filter =
+        new RecordFilter(
+            set("WireSend"),
+            set("ClientSend", "ClientRecv", "ServerSend", "ServerRecv", "Message"),
+            Collections.emptySet(),
+            Collections.emptySet());
+
+    assertTrue(filter.accept(Annotation.ClientSend$.MODULE$));
+    assertTrue(filter.accept(Annotation.ClientRecv$.MODULE$));
+    assertTrue(filter.accept(Annotation.ServerSend$.MODULE$));
+    assertTrue(filter.accept(Annotation.ServerRecv$.MODULE$));
+    assertTrue(filter.accept(Annotation.WireSend$.MODULE$));
+    assertFalse(filter.accept(Annotation.WireRecv$.MODULE$));
+    assertFalse(filter.accept(new Annotation.Message("finagle.timeout")));
+  }
+
+  @Test
+  public void theDenylistWins() {
+    RecordFilter filter =
+        new RecordFilter(
+            set("BinaryAnnotation"), set("BinaryAnnotation"), set("a"), Collections.emptySet());
+
+    assertFalse(filter.accept(new Annotation.BinaryAnnotation("a", "b")));
+
+    filter = new RecordFilter(Collections.emptySet(), Collections.emptySet(), set("a"), set("a"));
+    assertFalse(filter.accept(new Annotation.BinaryAnnotation("a", "b")));
+  }
+
+  private static Set<String> set(String... values) {
+    return new HashSet<>(Arrays.asList(values));
+  }
+}
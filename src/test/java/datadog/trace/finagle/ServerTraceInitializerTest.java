@@ -0,0 +1,142 @@
+package datadog.trace.finagle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.twitter.finagle.Service;
+import com.twitter.finagle.http.Request;
+import com.twitter.finagle.http.Response;
+import com.twitter.finagle.stats.InMemoryStatsReceiver;
+import com.twitter.finagle.tracing.Annotation;
+import com.twitter.finagle.tracing.Trace;
+import com.twitter.finagle.tracing.TraceId;
+import com.twitter.util.Await;
+import com.twitter.util.Future;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import scala.Option;
+import scala.collection.JavaConverters;
+
+public class ServerTraceInitializerTest {
+  private TestAgent agent;
+  private InMemoryStatsReceiver stats;
+  private TracerRuntime runtime;
+  private DatadogTracer tracer;
+
+  @Before
+  public void setUp() throws IOException {
+    agent = new TestAgent();
+    stats = new InMemoryStatsReceiver();
+    // Shared with the tracer, so the test can drive its governor
+    runtime = TracerRuntime.acquire("127.0.0.1", agent.getPort(), stats);
+    tracer = new DatadogTracer("test", "127.0.0.1", agent.getPort(), stats);
+  }
+
+  @After
+  public void tearDown() {
+    tracer.close(5, TimeUnit.SECONDS);
+    if (runtime != null) {
+      runtime.release(5, TimeUnit.SECONDS);
+    }
+    agent.close();
+  }
+
+  @Test
+  public void governedServerTracesAreKeptOrDroppedAsAWhole() throws Exception {
+    // Starts the tracer's runtime, the governor only decides once the tracer records
+    TraceId warmup = serve();
+
+    // Twice the pending traces budget halves the rate
+    runtime.getGovernor().update(10000, 0, -1);
+
+    Map<BigInteger, Boolean> decisions = new HashMap<>();
+    for (int i = 0; i < 50; i++) {
+      TraceId traceId = serve();
+      assertTrue(traceId._sampled().isDefined());
+      decisions.put(toBigInteger(traceId), (Boolean) traceId._sampled().get());
+    }
+    // The last release sends the queued traces
+    tracer.close(5, TimeUnit.SECONDS);
+    runtime.release(5, TimeUnit.SECONDS);
+    runtime = null;
+
+    int kept = 0;
+    for (JsonNode trace : agent.getTraces()) {
+      BigInteger traceId = trace.get(0).get("trace_id").bigIntegerValue();
+      if (traceId.equals(toBigInteger(warmup))) {
+        continue;
+      }
+      assertEquals(Boolean.TRUE, decisions.get(traceId));
+      assertEquals(2, trace.size());
+      kept++;
+
+      for (JsonNode span : trace) {
+        if (span.get("parent_id").bigIntegerValue().signum() == 0) {
+          double sampleRate = span.get("metrics").get("_sample_rate").doubleValue();
+          assertTrue(sampleRate > 0 && sampleRate < 1);
+        }
+      }
+    }
+
+    long dropped = decisions.values().stream().filter(sampled -> !sampled).count();
+    assertEquals(decisions.size() - dropped, kept);
+    assertTrue(kept > 0 && dropped > 0);
+    assertEquals(dropped, counter("dd_tracer", "governor", "unsampled_traces"));
+  }
+
+  /** @return The server span's id */
+  private TraceId serve() throws Exception {
+    List<TraceId> serverIds = new ArrayList<>();
+    Service<Request, Response> service =
+        new Service<Request, Response>() {
+          @Override
+          public Future<Response> apply(Request request) {
+            serverIds.add(Trace.id());
+            record(Annotation.ServerRecv$.MODULE$);
+            Trace.letId(
+                Trace.nextId(),
+                false,
+                () -> {
+                  record(Annotation.ClientSend$.MODULE$);
+                  record(Annotation.ClientRecv$.MODULE$);
+                  return null;
+                });
+            record(Annotation.ServerSend$.MODULE$);
+            return Future.value(Response.apply());
+          }
+        };
+
+    Await.result(
+        ServerTraceInitializer.<Request, Response>filter(tracer)
+            .andThen(service)
+            .apply(Request.apply("/")));
+    return serverIds.get(0);
+  }
+
+  /** Records like the Finagle tracing filters, which skip unsampled traces */
+  private static void record(Annotation annotation) {
+    if (Trace.isActivelyTracing()) {
+      Trace.record(annotation);
+    }
+  }
+
+  private static BigInteger toBigInteger(TraceId traceId) {
+    return new BigInteger(traceId.traceId().toString(), 16);
+  }
+
+  private long counter(String... name) {
+    Option<Object> value =
+        stats.counters().get(JavaConverters.asScalaBuffer(Arrays.asList(name)).toList());
+    return value.isDefined() ? (Long) value.get() : 0;
+  }
+}
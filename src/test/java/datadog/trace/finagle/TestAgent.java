@@ -0,0 +1,62 @@
+package datadog.trace.finagle;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+/** Accepts every upload on {@code /v0.4/traces} and keeps the decoded traces */
+final class TestAgent implements AutoCloseable {
+  private final ObjectMapper objectMapper = new ObjectMapper(new MessagePackFactory());
+  private final HttpServer server;
+
+  // Guarded by this
+  private final List<JsonNode> traces = new ArrayList<>();
+
+  TestAgent() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/v0.4/traces", this::handle);
+    server.start();
+  }
+
+  int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  synchronized List<JsonNode> getTraces() {
+    return new ArrayList<>(traces);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    JsonNode batch = objectMapper.readTree(readAll(exchange.getRequestBody()));
+    synchronized (this) {
+      for (JsonNode trace : batch) {
+        traces.add(trace);
+      }
+    }
+    exchange.sendResponseHeaders(200, -1);
+    exchange.close();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+}
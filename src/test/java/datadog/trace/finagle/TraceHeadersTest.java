@@ -0,0 +1,88 @@
+package datadog.trace.finagle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.twitter.finagle.http.HeaderMap;
+import com.twitter.finagle.tracing.TraceId;
+import org.junit.Test;
+
+public class TraceHeadersTest {
+  @Test
+  public void extractsB3SingleHeader() {
+    TraceId traceId =
+        extract(TraceHeaders.B3, "463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-1");
+
+    assertEquals("48485a3953bb6124", traceId.traceId().toString());
+    assertEquals("463ac35c9f6413ad", traceId.traceIdHigh().get().toString());
+    assertEquals("a2fb4a1d1a96d312", traceId.parentId().toString());
+    assertEquals(Boolean.TRUE, traceId.getSampled().get());
+  }
+
+  @Test
+  public void keepsTheB3SamplingOnlyDecision() {
+    TraceId denied = extract(TraceHeaders.B3, "0");
+    assertEquals(Boolean.FALSE, denied.getSampled().get());
+    assertEquals(denied.spanId(), denied.traceId());
+
+    TraceId debug = extract(TraceHeaders.B3, "d");
+    assertEquals(Boolean.TRUE, debug.getSampled().get());
+    assertTrue(debug.flags().isDebug());
+
+    assertNull(extract(TraceHeaders.B3, "x"));
+  }
+
+  @Test
+  public void keepsTheB3MultiSamplingOnlyDecision() {
+    TraceId denied = extract(TraceHeaders.B3_SAMPLED, "0");
+    assertEquals(Boolean.FALSE, denied.getSampled().get());
+  }
+
+  @Test
+  public void rejectsInvalidB3Ids() {
+    // Truncated trace id
+    assertNull(extract(TraceHeaders.B3, "48485a3953bb612-a2fb4a1d1a96d312-1"));
+    // Invalid hex in the high half of the trace id
+    assertNull(extract(TraceHeaders.B3, "463ac35c9f6413zz48485a3953bb6124-a2fb4a1d1a96d312"));
+    // Truncated span id
+    assertNull(extract(TraceHeaders.B3, "48485a3953bb6124-a2fb4a1d1a96d31"));
+    assertNull(extract(TraceHeaders.B3, "48485a3953bb6124-a2fb4a1d1a96d312-x"));
+
+    HeaderMap headers = HeaderMap.newHeaderMap();
+    headers.set(TraceHeaders.B3_TRACE_ID, "48485a3953bb6124");
+    headers.set(TraceHeaders.B3_SPAN_ID, "a2fb4a1d1a96d3");
+    assertNull(TraceHeaders.extract(headers));
+  }
+
+  @Test
+  public void extractsDatadogHeaders() {
+    HeaderMap headers = HeaderMap.newHeaderMap();
+    headers.set(TraceHeaders.DATADOG_TRACE_ID, "18446744073709551615");
+    headers.set(TraceHeaders.DATADOG_PARENT_ID, "42");
+    headers.set(TraceHeaders.DATADOG_SAMPLING_PRIORITY, "0");
+
+    TraceId traceId = TraceHeaders.extract(headers);
+    assertEquals("ffffffffffffffff", traceId.traceId().toString());
+    assertEquals(42, traceId.parentId().toLong());
+    assertFalse((Boolean) traceId.getSampled().get());
+  }
+
+  @Test
+  public void extractsW3cTraceparent() {
+    String traceparent = "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01";
+    TraceId traceId = extract(TraceHeaders.TRACEPARENT, traceparent);
+    assertEquals("8448eb211c80319c", traceId.traceId().toString());
+    assertEquals("b7ad6b7169203331", traceId.parentId().toString());
+    assertEquals(Boolean.TRUE, traceId.getSampled().get());
+
+    assertNull(extract(TraceHeaders.TRACEPARENT, traceparent.replace("31-01", "3x-01")));
+  }
+
+  private static TraceId extract(String name, String value) {
+    HeaderMap headers = HeaderMap.newHeaderMap();
+    headers.set(name, value);
+    return TraceHeaders.extract(headers);
+  }
+}
@@ -0,0 +1,66 @@
+package datadog.trace.finagle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TraceSpoolTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void replaysBatchesOldestFirst() throws IOException {
+    File path = new File(folder.getRoot(), "spool");
+    try (TraceSpool spool = new TraceSpool(path, 4096)) {
+      spool.append(new byte[] {1}, 1);
+      spool.append(new byte[] {2, 2}, 2);
+    }
+
+    try (TraceSpool spool = new TraceSpool(path, 4096)) {
+      TraceSpool.Batch batch = spool.peek();
+      assertArrayEquals(new byte[] {1}, batch.payload);
+      spool.remove(batch);
+
+      batch = spool.peek();
+      assertArrayEquals(new byte[] {2, 2}, batch.payload);
+      assertEquals(2, batch.traceCount);
+      spool.remove(batch);
+      assertTrue(spool.isEmpty());
+    }
+  }
+
+  @Test
+  public void keepsBatchesAppendedAfterThePeekedOneWasEvicted() throws IOException {
+    try (TraceSpool spool = new TraceSpool(new File(folder.getRoot(), "spool"), 1024)) {
+      byte[] payload = new byte[400];
+      spool.append(payload, 1);
+      TraceSpool.Batch peeked = spool.peek();
+
+      // Evicts the peeked batch while it is being uploaded
+      spool.append(payload, 2);
+      spool.append(payload, 3);
+      assertEquals(2, spool.size());
+
+      spool.remove(peeked);
+      assertEquals(2, spool.size());
+      assertEquals(2, spool.peek().traceCount);
+    }
+  }
+
+  @Test
+  public void refusesASpoolInUse() throws IOException {
+    File path = new File(folder.getRoot(), "spool");
+    try (TraceSpool spool = new TraceSpool(path, 4096)) {
+      new TraceSpool(path, 4096);
+      fail("Opened a spool in use");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("already in use"));
+    }
+  }
+}